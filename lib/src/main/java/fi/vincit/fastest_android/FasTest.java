@@ -1,76 +1,233 @@
 package fi.vincit.fastest_android;
 
+import android.annotation.TargetApi;
 import android.app.Activity;
 import android.app.Application;
 import android.content.Context;
+import android.content.ContextWrapper;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.PixelFormat;
 import android.graphics.Rect;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Debug;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Message;
 import android.os.SystemClock;
+import android.os.Trace;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.Display;
+import android.view.FrameMetrics;
+import android.view.KeyCharacterMap;
+import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+import android.view.Window;
 import android.view.WindowManager;
+import android.view.inputmethod.EditorInfo;
+import android.view.inputmethod.ExtractedText;
+import android.view.inputmethod.ExtractedTextRequest;
+import android.view.inputmethod.InputConnection;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.CompoundButton;
-import android.widget.EditText;
 import android.widget.TextView;
 
 import org.json.JSONObject;
 import org.json.JSONArray;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.regex.Pattern;
 
 import fi.iki.elonen.NanoHTTPD;
 
 public class FasTest {
   private static final int DEFAULT_PORT = 7100;
+  private static final String DEFAULT_SOCKET_NAME = "fastest";
   private static final String TAG = "FasTest";
 
+  private static final int START_ATTEMPTS = 5;
+  private static final long START_RETRY_DELAY = 200L;
+
   private static FasTest instance;
-  private final Server server;
+  private volatile Server server;
 
-  public static void init(Application app, int port) {
+  // If `autoSelectPort` is true and `port` stays taken, the server is started in a free port
+  // instead. The port is logged and reported by `GET /status`.
+  public static void init(Application app, final int port, final boolean autoSelectPort) {
     if (instance == null) {
-      instance = new FasTest(app, port);
+      instance = new FasTest(app, new Func<TestContext, Server>() {
+        @Override
+        public Server run(TestContext ctx) {
+          return startServer(ctx, port, autoSelectPort);
+        }
+      });
     }
   }
 
+  public static void init(Application app, int port) {
+    init(app, port, false);
+  }
+
   public static void init(Application app) {
     init(app, DEFAULT_PORT);
   }
 
-  private FasTest(Application app, int port) {
-    TestContext ctx = new TestContext(app, new Handler(Looper.getMainLooper()));
-    server = new Server(ctx, port);
+  // Serves the same HTTP protocol from an abstract-namespace unix domain socket instead of
+  // TCP. Connect to it with `adb forward tcp:7100 localabstract:<socketName>`, which skips
+  // the device's loopback TCP stack.
+  public static void initLocal(Application app, final String socketName) {
+    if (instance == null) {
+      instance = new FasTest(app, new Func<TestContext, Server>() {
+        @Override
+        public Server run(TestContext ctx) {
+          return startLocalServer(ctx, socketName);
+        }
+      });
+    }
+  }
+
+  public static void initLocal(Application app) {
+    initLocal(app, DEFAULT_SOCKET_NAME);
+  }
+
+  private FasTest(Application app, final Func<TestContext, Server> start) {
+    final TestContext ctx = new TestContext(app, new Handler(Looper.getMainLooper()));
+
+    // Binding the socket blocks, so the server is started in a low priority background
+    // thread to keep it out of the app's cold start.
+    final Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        server = start.run(ctx);
+      }
+    }, "FasTest startup");
+
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // Retries the port a few times because the previous instrumented process may still be
+  // holding it while it shuts down.
+  static Server startServer(TestContext ctx, int port, boolean autoSelectPort) {
+    for (int attempt = 0; attempt <= START_ATTEMPTS; ++attempt) {
+      final int bindPort = attempt < START_ATTEMPTS ? port : 0;
+
+      if (bindPort == 0 && port != 0 && !autoSelectPort) {
+        break;
+      }
+
+      final Server server = new Server(ctx, bindPort);
+
+      try {
+        server.start();
+        Log.i(TAG, "listening on port " + server.getListeningPort());
+        return server;
+      } catch (IOException error) {
+        Log.w(TAG, "could not bind port " + bindPort + ": " + error.getMessage());
+
+        if (bindPort == 0) {
+          break;
+        }
+      }
+
+      SystemClock.sleep(START_RETRY_DELAY * (attempt + 1));
+    }
+
+    ctx.readiness.error = "could not bind port " + port;
+    Log.e(TAG, ctx.readiness.error);
+    return null;
+  }
+
+  static Server startLocalServer(TestContext ctx, String socketName) {
+    for (int attempt = 0; attempt < START_ATTEMPTS; ++attempt) {
+      final Server server = new Server(ctx, 0);
+      server.setServerSocketFactory(StreamTransport.localAbstract(socketName));
 
-    try {
-      server.start();
-    } catch (Throwable error) {
-      throw new RuntimeException(error);
+      try {
+        server.start();
+        Log.i(TAG, "listening on localabstract:" + socketName);
+        return server;
+      } catch (IOException error) {
+        Log.w(TAG, "could not bind localabstract:" + socketName + ": " + error.getMessage());
+      }
+
+      SystemClock.sleep(START_RETRY_DELAY * (attempt + 1));
     }
+
+    ctx.readiness.error = "could not bind localabstract:" + socketName;
+    Log.e(TAG, ctx.readiness.error);
+    return null;
   }
 
 
 
 
-  private static class Server extends NanoHTTPD {
+  static class Server extends NanoHTTPD {
     static final String MIME_TYPE_JsonObject = "application/json";
     static final String HEADER_CONTENT_LENGTH = "content-length";
+    static final String HEADER_ACCEPT_ENCODING = "accept-encoding";
 
     final TestContext ctx;
     final List<RequestHandler> requestHandlers = new ArrayList<>();
@@ -79,10 +236,17 @@ public class FasTest {
       super(port);
 
       this.ctx = ctx;
+      requestHandlers.add(new StatusRequestHandler(ctx));
+      requestHandlers.add(new SchedulerRequestHandler(ctx));
+      requestHandlers.add(new WatchdogRequestHandler(ctx));
+      requestHandlers.add(new ElementRegistryRequestHandler(ctx));
       requestHandlers.add(new CreateSessionRequestHandler(ctx));
       requestHandlers.add(new ImplicitWaitRequestHandler(ctx));
       requestHandlers.add(new GetWindowRectRequestHandler(ctx));
       requestHandlers.add(new GetElementsRequestHandler(ctx));
+      requestHandlers.add(new GetElementRequestHandler(ctx));
+      requestHandlers.add(new WaitRequestHandler(ctx));
+      requestHandlers.add(new HierarchyDiffRequestHandler(ctx));
       requestHandlers.add(new ClickElementRequestHandler(ctx));
       requestHandlers.add(new IsElementDisplayedRequestHandler(ctx));
       requestHandlers.add(new IsElementEnabledRequestHandler(ctx));
@@ -92,32 +256,106 @@ public class FasTest {
       requestHandlers.add(new GetElementRectRequestHandler(ctx));
       requestHandlers.add(new FlickRequestHandler(ctx));
       requestHandlers.add(new HideKeyboardRequestHandler(ctx));
+      requestHandlers.add(new StartTraceRequestHandler(ctx));
+      requestHandlers.add(new StopTraceRequestHandler(ctx));
+      requestHandlers.add(new ReplayTraceRequestHandler(ctx, this));
+      requestHandlers.add(new BenchmarkRequestHandler(ctx, this));
+      requestHandlers.add(new StartTimelineRequestHandler(ctx));
+      requestHandlers.add(new StopTimelineRequestHandler(ctx));
+      requestHandlers.add(new GetTimelineRequestHandler(ctx));
+      requestHandlers.add(new StartFrameRecordingRequestHandler(ctx));
+      requestHandlers.add(new StopFrameRecordingRequestHandler(ctx));
+      requestHandlers.add(new InputLatencyRequestHandler(ctx));
+      requestHandlers.add(new StartMemorySamplingRequestHandler(ctx));
+      requestHandlers.add(new StopMemorySamplingRequestHandler(ctx));
+      requestHandlers.add(new GetMemorySamplesRequestHandler(ctx));
+      requestHandlers.add(new MarkMemoryRequestHandler(ctx));
+      requestHandlers.add(new DiffMemoryRequestHandler(ctx));
+    }
+
+    @Override
+    public void start(int timeout, boolean daemon) throws IOException {
+      super.start(timeout, daemon);
+
+      if (getServerSocketFactory() instanceof StreamTransport) {
+        ctx.readiness.bound(-1, ((StreamTransport) getServerSocketFactory()).name);
+      } else {
+        ctx.readiness.bound(getListeningPort(), null);
+      }
     }
 
     @Override
     public Response serve(IHTTPSession req) {
+      // Nothing can be done before there's an activity, so the requests are rejected without
+      // reading them. The status command is always served so clients can poll for readiness.
+      if (!ctx.readiness.isReady() && !StatusRequestHandler.isStatusRequest(req)) {
+        final JsonObject notReady = JsonObject.newObject();
+        notReady.put("error", "not ready");
+
+        final Response response = jsonResponse(notReady.toString(), Response.Status.SERVICE_UNAVAILABLE);
+        response.closeConnection(true);
+        return response;
+      }
+
+      if (ScreenStream.isStreamRequest(req)) {
+        try {
+          return ScreenStream.response(ctx, req);
+        } catch (Throwable err) {
+          Log.e(TAG, "could not start screen stream", err);
+
+          final JsonObject error = JsonObject.newObject();
+          error.put("error", err.getMessage());
+          return jsonResponse(error.toString(), Response.Status.INTERNAL_ERROR);
+        }
+      }
+
+      final long startNanos = System.nanoTime();
       Response.Status status = Response.Status.OK;
       JsonObject body = readBody(req);
-      JsonObject responseBody = JsonObject.newObject();
+      JsonObject responseBody;
 
       Log.d(TAG, "request received: " + req.getMethod().name() + " " + req.getUri() + " " + body.toString());
 
       try {
-        for (RequestHandler handler : requestHandlers) {
-          if (handler.canHandle(req)) {
-            responseBody = handler.handle(req, body);
-            break;
-          }
-        }
+        responseBody = dispatch(req, body);
       } catch (Throwable err) {
         Log.e(TAG, "request handling error", err);
 
         status = Response.Status.INTERNAL_ERROR;
         responseBody = JsonObject.newObject();
         responseBody.put("error", err.getMessage());
+
+        if (err instanceof WatchdogException) {
+          responseBody.put("watchdog", ((WatchdogException) err).report);
+        }
+      }
+
+      final String responseStr = responseBody.toString();
+
+      if (ctx.trace.isRecording() && !CommandTrace.isTraceCommand(req.getUri())) {
+        ctx.trace.record(
+          req.getMethod().name(),
+          req.getUri(),
+          body.toString(),
+          startNanos,
+          System.nanoTime() - startNanos,
+          status.getRequestStatus(),
+          responseStr.length(),
+          CommandTrace.elementIdsOf(responseBody)
+        );
+      }
+
+      return jsonResponse(req, responseStr, status);
+    }
+
+    JsonObject dispatch(IHTTPSession req, JsonObject body) throws Throwable {
+      for (RequestHandler handler : requestHandlers) {
+        if (handler.canHandle(req)) {
+          return handler.handle(req, body);
+        }
       }
 
-      return jsonResponse(responseBody, status);
+      return JsonObject.newObject();
     }
 
     JsonObject readBody(IHTTPSession req) {
@@ -137,675 +375,5698 @@ public class FasTest {
       }
     }
 
-    Response jsonResponse(JsonObject body, Response.Status status) {
-      String bodyStr = body.toString();
+    Response jsonResponse(String bodyStr, Response.Status status) {
       Log.d(TAG, "sending response: " + bodyStr);
       return newFixedLengthResponse(status, MIME_TYPE_JsonObject, bodyStr);
     }
-  }
 
+    Response jsonResponse(IHTTPSession req, String bodyStr, Response.Status status) {
+      final String encoding = ResponseCompression.encodingFor(req.getHeaders().get(HEADER_ACCEPT_ENCODING), bodyStr.length());
 
+      if (encoding == null) {
+        return jsonResponse(bodyStr, status);
+      }
 
+      Log.d(TAG, "sending " + encoding + " response: " + bodyStr);
 
-  private static class TestContext {
-    final Context context;
-    final Handler handler;
-    final ViewFinder viewFinder;
-    final WeakHashMap<View, String> viewCache = new WeakHashMap<>();
+      final byte[] bytes;
 
-    long timeout = 10000L;
-    long pollInterval = 100L;
+      try {
+        bytes = bodyStr.getBytes("UTF-8");
+      } catch (Throwable error) {
+        throw new RuntimeException(error);
+      }
 
-    TestContext(Application app, Handler handler) {
-      this.context = app;
-      this.handler = handler;
-      this.viewFinder = new ViewFinder(app);
+      final Response response = newChunkedResponse(status, MIME_TYPE_JsonObject, ResponseCompression.compress(bytes, encoding));
+      response.addHeader("Content-Encoding", encoding);
+      response.addHeader("Vary", "Accept-Encoding");
+      return response;
     }
 
-    View findView(String id) {
-      for (Map.Entry<View, String> entry : viewCache.entrySet()) {
-        if (entry.getValue().equals(id)) {
-          return entry.getKey();
-        }
-      }
-
-      return null;
+    // NanoHTTPD would gzip every JSON response with a throwaway `GZIPOutputStream`.
+    // Compression is negotiated in `jsonResponse` instead.
+    @Override
+    protected boolean useGzipWhenAccepted(Response response) {
+      return false;
     }
   }
 
 
 
 
-  private interface Func<V, R> {
-    R run(V value);
-  }
+  // Compresses response bodies with gzip or deflate. The body is deflated lazily while
+  // NanoHTTPD writes it to the socket, so no compressed copy of the body is ever built, and
+  // the native `Deflater`s are pooled instead of being allocated for every response.
+  static class ResponseCompression {
+    static final int MIN_BYTES = 1024;
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
 
+    private static final int POOL_SIZE = 4;
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
 
+    // Raw deflaters for gzip, which has its own header and trailer, and zlib deflaters for deflate.
+    private static final ArrayDeque<Deflater> rawDeflaters = new ArrayDeque<>();
+    private static final ArrayDeque<Deflater> zlibDeflaters = new ArrayDeque<>();
 
+    // Returns the encoding to use for a body of `length` characters or null if it should be
+    // sent as is. Small responses fit in a packet or two anyway so they aren't worth the CPU time.
+    static String encodingFor(String acceptEncoding, int length) {
+      return length < MIN_BYTES ? null : negotiate(acceptEncoding);
+    }
 
-  private interface Callback<T> {
-    void done(Throwable error, T result);
-  }
+    // Picks gzip or deflate from an `Accept-Encoding` header or returns null.
+    static String negotiate(String acceptEncoding) {
+      if (acceptEncoding == null) {
+        return null;
+      }
 
+      boolean gzip = false;
+      boolean deflate = false;
 
+      for (String part : acceptEncoding.split(",")) {
+        final String[] params = part.split(";");
+        final String coding = params[0].trim().toLowerCase(Locale.US);
 
+        if (params.length > 1 && params[1].trim().matches("q\\s*=\\s*0(\\.0*)?")) {
+          continue;
+        }
 
-  private static class RequestHandlerResult {
-    JsonObject result;
-    Throwable error;
-  }
+        gzip |= GZIP.equals(coding);
+        deflate |= DEFLATE.equals(coding);
+      }
 
+      return gzip ? GZIP : deflate ? DEFLATE : null;
+    }
 
+    static InputStream compress(byte[] bytes, String encoding) {
+      final boolean gzip = GZIP.equals(encoding);
+      final InputStream deflated = new DeflatingInputStream(bytes, gzip);
 
+      if (!gzip) {
+        return deflated;
+      }
 
-  private static abstract class RequestHandler {
-    protected final TestContext ctx;
+      final CRC32 crc = new CRC32();
+      crc.update(bytes, 0, bytes.length);
 
-    RequestHandler(TestContext ctx) {
-      this.ctx = ctx;
-    }
+      final byte[] trailer = new byte[8];
+      writeIntLE(trailer, 0, (int) crc.getValue());
+      writeIntLE(trailer, 4, bytes.length);
 
-    abstract boolean canHandle(NanoHTTPD.IHTTPSession req);
-    abstract void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, Callback<JsonObject> callback);
+      return new SequenceInputStream(Collections.enumeration(Arrays.asList(
+        new ByteArrayInputStream(GZIP_HEADER),
+        deflated,
+        new ByteArrayInputStream(trailer)
+      )));
+    }
 
-    JsonObject handle(final NanoHTTPD.IHTTPSession req, final JsonObject body) throws Throwable {
-      final CountDownLatch latch = new CountDownLatch(1);
-      final RequestHandlerResult result = new RequestHandlerResult();
+    static Deflater obtain(boolean raw) {
+      final ArrayDeque<Deflater> pool = raw ? rawDeflaters : zlibDeflaters;
 
-      ctx.handler.post(new Runnable() {
-        @Override
-        public void run() {
-          try {
-            handleInMainThread(req, body, new Callback<JsonObject>() {
-              @Override
-              public void done(Throwable error, JsonObject res) {
-                result.result = res;
-                result.error = error;
-                latch.countDown();
-              }
-            });
-          } catch (Throwable err) {
-            result.result = null;
-            result.error = err;
-            latch.countDown();
-          }
+      synchronized (pool) {
+        if (!pool.isEmpty()) {
+          return pool.pop();
         }
-      });
-
-      // Wait here until the work is done in the main thread.
-      latch.await();
-
-      if (result.error != null) {
-        throw result.error;
       }
 
-      return result.result;
+      return new Deflater(Deflater.BEST_SPEED, raw);
     }
-  }
 
+    static void recycle(Deflater deflater, boolean raw) {
+      final ArrayDeque<Deflater> pool = raw ? rawDeflaters : zlibDeflaters;
+      deflater.reset();
 
+      synchronized (pool) {
+        if (pool.size() < POOL_SIZE) {
+          pool.push(deflater);
+          return;
+        }
+      }
 
-
-  private static abstract class ElementRequestHandler extends RequestHandler {
-
-    ElementRequestHandler(TestContext ctx) {
-      super(ctx);
+      deflater.end();
     }
 
-    View findElementView(NanoHTTPD.IHTTPSession req) {
-      String[] uriParts = req.getUri().split("/");
-      String id = uriParts[uriParts.length - 2];
-      return ctx.findView(id);
+    static void writeIntLE(byte[] bytes, int offset, int value) {
+      bytes[offset] = (byte) value;
+      bytes[offset + 1] = (byte) (value >> 8);
+      bytes[offset + 2] = (byte) (value >> 16);
+      bytes[offset + 3] = (byte) (value >> 24);
     }
-  }
 
+    // Drives a pooled `Deflater` directly like `ScreenStream.writeFrame` does. Before API 24
+    // `DeflaterInputStream.close` ends the deflater even if it was passed in, so it can't be
+    // used with the pool.
+    private static class DeflatingInputStream extends InputStream {
+      private final Deflater deflater;
+      private final boolean raw;
+      private boolean closed = false;
+
+      DeflatingInputStream(byte[] bytes, boolean raw) {
+        this.raw = raw;
+        this.deflater = obtain(raw);
+        deflater.setInput(bytes, 0, bytes.length);
+        deflater.finish();
+      }
 
+      @Override
+      public int read() throws IOException {
+        final byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+      }
 
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (closed) {
+          throw new IOException("stream closed");
+        }
 
-  private static class CreateSessionRequestHandler extends RequestHandler {
+        if (length == 0) {
+          return 0;
+        }
 
-    CreateSessionRequestHandler(TestContext ctx) {
-      super(ctx);
-    }
+        int count = 0;
 
-    @Override
-    boolean canHandle(NanoHTTPD.IHTTPSession req) {
-      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("session");
-    }
+        while (count == 0 && !deflater.finished()) {
+          count = deflater.deflate(buffer, offset, length);
+        }
 
-    @Override
-    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, Callback<JsonObject> callback) {
-      JsonObject result = JsonObject.newObject();
-      result.put("sessionId", UUID.randomUUID().toString());
-      callback.done(null, result);
+        return count == 0 ? -1 : count;
+      }
+
+      @Override
+      public void close() {
+        if (!closed) {
+          closed = true;
+          recycle(deflater, raw);
+        }
+      }
     }
   }
 
 
 
 
-  private static class ImplicitWaitRequestHandler extends RequestHandler {
-
-    ImplicitWaitRequestHandler(TestContext ctx) {
-      super(ctx);
-    }
-
-    @Override
-    boolean canHandle(NanoHTTPD.IHTTPSession req) {
-      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("implicit_wait");
+  // `GET .../fastest/screen/stream?fps=5&tile=32&scale=0.5` streams the screen in a chunked
+  // binary response that lasts until the client disconnects. The root view is drawn into a
+  // reused bitmap at most `fps` times a second, and only if something has been laid out or
+  // drawn since the previous frame. The frame is split into tiles whose hashes are compared
+  // to the previous frame's in the streaming thread and only the changed tiles are sent, so
+  // an idle screen costs an empty frame a second.
+  //
+  // The stream starts with the magic `FTSS` and the version as ints. Then each frame is
+  //
+  //   int    length of the rest of the frame
+  //   long   capture time in uptime milliseconds
+  //   short  width, short height, short tile size
+  //   int    number of changed tiles followed by their indexes in row-major order as ints
+  //   bytes  zlib deflated ARGB pixels of the changed tiles row by row, clipped to the frame
+  //
+  // All the tiles of the first frame and of a frame with a new size are sent.
+  static class ScreenStream extends InputStream {
+    static final int MAGIC = 0x46545353;
+    static final int VERSION = 1;
+
+    private static final long IDLE_FRAME_INTERVAL = 1000L;
+    private static final int MAX_FPS = 30;
+
+    private final TestContext ctx;
+    private final long frameInterval;
+    private final int tileSize;
+    private final float scale;
+    private final Deflater deflater = ResponseCompression.obtain(false);
+    private final FrameBuffer out = new FrameBuffer();
+    private final DataOutputStream data = new DataOutputStream(out);
+    private volatile boolean closed = false;
+
+    // Only accessed in the main thread.
+    private Bitmap bitmap;
+    private Canvas canvas;
+    private long renderedAt = -1;
+
+    // Only accessed in the streaming thread.
+    private int width = -1;
+    private int height = -1;
+    private int[] pixels = new int[0];
+    private int[] hashes = new int[0];
+    private int[] changed = new int[0];
+    private byte[] raw = new byte[0];
+    private byte[] compressed = new byte[8192];
+    private long frameAt = 0;
+    private long sentAt = 0;
+    private int readOffset = 0;
+
+    private static class FrameBuffer extends ByteArrayOutputStream {
+      byte[] buffer() {
+        return buf;
+      }
     }
 
-    @Override
-    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, Callback<JsonObject> callback) {
-      ctx.timeout = body.getLong("ms");
-      callback.done(null, JsonObject.newObject());
+    static boolean isStreamRequest(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.GET && req.getUri().endsWith("fastest/screen/stream");
     }
-  }
 
+    static NanoHTTPD.Response response(TestContext ctx, NanoHTTPD.IHTTPSession req) throws IOException {
+      final Map<String, List<String>> params = req.getParameters();
+      final int fps = Math.max(1, Math.min(MAX_FPS, params.containsKey("fps") ? Integer.parseInt(params.get("fps").get(0)) : 5));
+      final int tileSize = Math.max(8, params.containsKey("tile") ? Integer.parseInt(params.get("tile").get(0)) : 32);
+      final float scale = Math.max(0.1f, Math.min(1f, params.containsKey("scale") ? Float.parseFloat(params.get("scale").get(0)) : 0.5f));
 
+      final NanoHTTPD.Response response = NanoHTTPD.newChunkedResponse(
+        NanoHTTPD.Response.Status.OK,
+        "application/octet-stream",
+        new ScreenStream(ctx, 1000L / fps, tileSize, scale)
+      );
 
+      response.addHeader("Cache-Control", "no-cache");
+      return response;
+    }
 
-  private static class GetWindowRectRequestHandler extends RequestHandler {
+    ScreenStream(TestContext ctx, long frameInterval, int tileSize, float scale) throws IOException {
+      this.ctx = ctx;
+      this.frameInterval = frameInterval;
+      this.tileSize = tileSize;
+      this.scale = scale;
 
-    GetWindowRectRequestHandler(TestContext ctx) {
-      super(ctx);
+      data.writeInt(MAGIC);
+      data.writeInt(VERSION);
     }
 
     @Override
-    boolean canHandle(NanoHTTPD.IHTTPSession req) {
-      return req.getMethod() == NanoHTTPD.Method.GET && req.getUri().endsWith("window/rect");
+    public int read() throws IOException {
+      final byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
     }
 
     @Override
-    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, final Callback<JsonObject> callback) {
-      JsonObject result = JsonObject.newObject();
-      JsonObject rectJson = JsonObject.newObject();
-      Rect rect = ViewUtils.getWindowRect(ctx.viewFinder.getRootView());
-      rectJson.put("x", rect.left);
-      rectJson.put("y", rect.top);
-      rectJson.put("width", rect.width());
-      rectJson.put("height", rect.height());
-      result.put("value", rectJson);
-      callback.done(null, result);
-    }
-  }
-
-
-
-
-  private static class GetElementsRequestHandler extends RequestHandler {
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      while (readOffset == out.size()) {
+        if (closed) {
+          return -1;
+        }
 
-    GetElementsRequestHandler(TestContext ctx) {
-      super(ctx);
-    }
+        out.reset();
+        readOffset = 0;
+        nextFrame();
+      }
 
-    @Override
-    boolean canHandle(NanoHTTPD.IHTTPSession req) {
-      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("elements");
+      final int count = Math.min(length, out.size() - readOffset);
+      System.arraycopy(out.buffer(), readOffset, buffer, offset, count);
+      readOffset += count;
+      return count;
     }
 
     @Override
-    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, final Callback<JsonObject> callback) {
-      final String strategy = body.getString("using");
-      final String value = body.getString("value");
-      final Func<View, Boolean> tester;
-
-      if ("xpath".equals(strategy)) {
-        tester = createXPathTester(value);
-      } else if ("class name".equals(strategy)) {
-        tester = createClassNameTester(value);
-      } else {
-        tester = createIdTester(value);
+    public void close() {
+      if (closed) {
+        return;
       }
 
-      AsyncUtils.poll(ctx.handler, ctx.pollInterval, ctx.timeout, new Func<Void, List<View>>() {
-        @Override
-        public List<View> run(Void value) {
-          final Rect windowRect = ViewUtils.getWindowRect(ctx.viewFinder.getRootView());
-
-          final List<View> views = ctx.viewFinder.findViews(new Func<View, Boolean>() {
-            @Override
-            public Boolean run(View view) {
-              return tester.run(view) && ViewUtils.isVisible(view, windowRect);
-            }
-          });
+      closed = true;
+      ResponseCompression.recycle(deflater, false);
 
-          if (views.isEmpty()) {
-            return null;
-          } else {
-            return views;
-          }
-        }
-      }, new Callback<List<View>>() {
+      ctx.handler.post(new Runnable() {
         @Override
-        public void done(Throwable error, List<View> views) {
-          if (views == null) {
-            views = new ArrayList<>();
-          }
-
-          if (error != null) {
-            callback.done(error, null);
-          } else {
-            JsonObject elements = JsonObject.newArray();
-            JsonObject result = JsonObject.newObject();
-
-            for (View view : views) {
-              JsonObject element = JsonObject.newObject();
-              String id = ctx.viewCache.get(view);
-
-              if (id == null) {
-                id = "element-" + UUID.randomUUID().toString();
-                ctx.viewCache.put(view, id);
-              }
-
-              element.put("ELEMENT", id);
-              elements.add(element);
-            }
-
-            result.put("value", elements);
-            callback.done(null, result);
+        public void run() {
+          if (bitmap != null) {
+            bitmap.recycle();
+            bitmap = null;
+            canvas = null;
           }
         }
       });
     }
 
-    Func<View, Boolean> createXPathTester(String xpath) {
-      try {
-        final Pattern pattern = Pattern.compile("//(.+)\\[@text=['\"](.+)['\"]\\]");
-        final Matcher matcher = pattern.matcher(xpath);
-
-        if (matcher.find()) {
-          final String className = matcher.group(1);
-          final String text = matcher.group(2);
-          final Class<?> viewClass = Class.forName(className);
+    private void nextFrame() throws IOException {
+      final long wait = frameAt + frameInterval - SystemClock.uptimeMillis();
 
-          return new Func<View, Boolean>() {
-            @Override
-            public Boolean run(View view) {
-              return viewClass.isAssignableFrom(view.getClass())
-                && view instanceof TextView
-                && text.equals(((TextView) view).getText().toString());
-            }
-          };
-        } else {
-          throw new RuntimeException("invalid or unsupported xpath " + xpath);
+      if (wait > 0) {
+        try {
+          Thread.sleep(wait);
+        } catch (InterruptedException error) {
+          throw new IOException(error);
         }
-      } catch (Throwable error) {
-        throw new RuntimeException(error);
       }
-    }
 
-    Func<View, Boolean> createClassNameTester(String className) {
-      try {
-        final Class<?> viewClass = Class.forName(className);
+      frameAt = SystemClock.uptimeMillis();
+      final Bitmap frame;
 
-        return new Func<View, Boolean>() {
+      try {
+        frame = AsyncUtils.callInMainThread(ctx, "render screen", new Func<Void, Bitmap>() {
           @Override
-          public Boolean run(View view) {
-            return viewClass.isAssignableFrom(view.getClass());
+          public Bitmap run(Void value) {
+            return render();
           }
-        };
+        });
       } catch (Throwable error) {
-        throw new RuntimeException(error);
+        throw new IOException(error);
       }
-    }
 
-    Func<View, Boolean> createIdTester(String packageAndId) {
+      int count = 0;
+
+      if (frame != null) {
+        count = diffTiles(frame);
+      }
+
+      if (count > 0 || frameAt - sentAt >= IDLE_FRAME_INTERVAL) {
+        writeFrame(count);
+        sentAt = frameAt;
+      }
+    }
+
+    // Must be called in the main thread. Returns null if nothing has changed since the
+    // previous frame.
+    private Bitmap render() {
+      if (closed) {
+        return null;
+      }
+
+      final View rootView = ctx.viewFinder.getRootView();
+      final int frameWidth = Math.round(rootView.getWidth() * scale);
+      final int frameHeight = Math.round(rootView.getHeight() * scale);
+
+      ctx.propertyCache.observe(rootView);
+
+      if (frameWidth <= 0 || frameHeight <= 0) {
+        return null;
+      }
+
+      final long changedAt = ctx.propertyCache.changedAtNanos();
+      final boolean resized = bitmap == null || bitmap.getWidth() != frameWidth || bitmap.getHeight() != frameHeight;
+
+      if (!resized && changedAt == renderedAt) {
+        return null;
+      }
+
+      if (resized) {
+        if (bitmap != null) {
+          bitmap.recycle();
+        }
+
+        bitmap = Bitmap.createBitmap(frameWidth, frameHeight, Bitmap.Config.ARGB_8888);
+        canvas = new Canvas(bitmap);
+        canvas.scale(scale, scale);
+      }
+
+      bitmap.eraseColor(0);
+      rootView.draw(canvas);
+      renderedAt = changedAt;
+      return bitmap;
+    }
+
+    // Hashes the tiles of the frame and collects the changed ones to `changed`. Returns the
+    // number of changed tiles.
+    private int diffTiles(Bitmap frame) {
+      final int frameWidth = frame.getWidth();
+      final int frameHeight = frame.getHeight();
+      final int columns = (frameWidth + tileSize - 1) / tileSize;
+      final int rows = (frameHeight + tileSize - 1) / tileSize;
+      final boolean resized = frameWidth != width || frameHeight != height;
+
+      if (pixels.length != frameWidth * frameHeight) {
+        pixels = new int[frameWidth * frameHeight];
+      }
+
+      if (resized) {
+        hashes = new int[columns * rows];
+        changed = new int[columns * rows];
+        width = frameWidth;
+        height = frameHeight;
+      }
+
+      frame.getPixels(pixels, 0, frameWidth, 0, 0, frameWidth, frameHeight);
+      int count = 0;
+
+      for (int tile = 0; tile < columns * rows; ++tile) {
+        final int left = (tile % columns) * tileSize;
+        final int top = (tile / columns) * tileSize;
+        final int right = Math.min(left + tileSize, frameWidth);
+        final int bottom = Math.min(top + tileSize, frameHeight);
+
+        // FNV-1a over the pixels.
+        int hash = 0x811c9dc5;
+
+        for (int y = top; y < bottom; ++y) {
+          for (int i = y * frameWidth + left, end = y * frameWidth + right; i < end; ++i) {
+            hash = (hash ^ pixels[i]) * 0x01000193;
+          }
+        }
+
+        if (resized || hash != hashes[tile]) {
+          hashes[tile] = hash;
+          changed[count++] = tile;
+        }
+      }
+
+      return count;
+    }
+
+    private void writeFrame(int count) throws IOException {
+      final int columns = Math.max(1, (width + tileSize - 1) / tileSize);
+      int rawLength = 0;
+
+      if (raw.length < count * tileSize * tileSize * 4) {
+        raw = new byte[count * tileSize * tileSize * 4];
+      }
+
+      for (int i = 0; i < count; ++i) {
+        final int left = (changed[i] % columns) * tileSize;
+        final int top = (changed[i] / columns) * tileSize;
+        final int right = Math.min(left + tileSize, width);
+        final int bottom = Math.min(top + tileSize, height);
+
+        for (int y = top; y < bottom; ++y) {
+          for (int p = y * width + left, end = y * width + right; p < end; ++p) {
+            final int pixel = pixels[p];
+            raw[rawLength++] = (byte) (pixel >>> 24);
+            raw[rawLength++] = (byte) (pixel >>> 16);
+            raw[rawLength++] = (byte) (pixel >>> 8);
+            raw[rawLength++] = (byte) pixel;
+          }
+        }
+      }
+
+      deflater.reset();
+      deflater.setInput(raw, 0, rawLength);
+      deflater.finish();
+      int compressedLength = 0;
+
+      while (!deflater.finished()) {
+        if (compressedLength == compressed.length) {
+          compressed = Arrays.copyOf(compressed, compressed.length * 2);
+        }
+
+        compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+      }
+
+      data.writeInt(8 + 2 + 2 + 2 + 4 + count * 4 + compressedLength);
+      data.writeLong(frameAt);
+      data.writeShort(Math.max(0, width));
+      data.writeShort(Math.max(0, height));
+      data.writeShort(tileSize);
+      data.writeInt(count);
+
+      for (int i = 0; i < count; ++i) {
+        data.writeInt(changed[i]);
+      }
+
+      data.write(compressed, 0, compressedLength);
+    }
+  }
+
+
+
+
+  // Lets the server accept connections from stream sockets other than TCP, for example
+  // unix domain sockets. NanoHTTPD only deals with `ServerSocket`s and `Socket`s, so the
+  // acceptor and its connections are adapted to those. The address NanoHTTPD binds to is
+  // ignored and `binder` decides where to listen.
+  static class StreamTransport implements NanoHTTPD.ServerSocketFactory {
+    final String name;
+    private final Binder binder;
+
+    interface Binder {
+      Acceptor bind() throws IOException;
+    }
+
+    interface Acceptor extends Closeable {
+      Connection accept() throws IOException;
+    }
+
+    interface Connection extends Closeable {
+      InputStream getInputStream() throws IOException;
+      OutputStream getOutputStream() throws IOException;
+      void setSoTimeout(int timeout) throws IOException;
+    }
+
+    StreamTransport(String name, Binder binder) {
+      this.name = name;
+      this.binder = binder;
+    }
+
+    static StreamTransport localAbstract(final String socketName) {
+      return new StreamTransport(socketName, new Binder() {
+        @Override
+        public Acceptor bind() throws IOException {
+          return new LocalSocketAcceptor(socketName);
+        }
+      });
+    }
+
+    @Override
+    public ServerSocket create() throws IOException {
+      return new StreamServerSocket(binder);
+    }
+
+    private static class StreamServerSocket extends ServerSocket {
+      private final Binder binder;
+      private volatile Acceptor acceptor;
+      private volatile boolean closed = false;
+
+      StreamServerSocket(Binder binder) throws IOException {
+        this.binder = binder;
+      }
+
+      @Override
+      public void bind(SocketAddress endpoint) throws IOException {
+        bind(endpoint, 0);
+      }
+
+      @Override
+      public void bind(SocketAddress endpoint, int backlog) throws IOException {
+        acceptor = binder.bind();
+      }
+
+      @Override
+      public Socket accept() throws IOException {
+        if (acceptor == null) {
+          throw new SocketException("not bound");
+        }
+
+        return new ConnectionSocket(acceptor.accept());
+      }
+
+      @Override
+      public void close() throws IOException {
+        closed = true;
+
+        if (acceptor != null) {
+          acceptor.close();
+        }
+      }
+
+      @Override
+      public boolean isClosed() {
+        return closed;
+      }
+
+      @Override
+      public boolean isBound() {
+        return acceptor != null;
+      }
+
+      @Override
+      public int getLocalPort() {
+        return -1;
+      }
+
+      // The base implementation would create a TCP socket just to set the option.
+      @Override
+      public void setReuseAddress(boolean on) {}
+    }
+
+    private static class ConnectionSocket extends Socket {
+      private final Connection connection;
+      private volatile boolean closed = false;
+
+      ConnectionSocket(Connection connection) {
+        this.connection = connection;
+      }
+
+      @Override
+      public InputStream getInputStream() throws IOException {
+        return connection.getInputStream();
+      }
+
+      @Override
+      public OutputStream getOutputStream() throws IOException {
+        return connection.getOutputStream();
+      }
+
+      @Override
+      public void setSoTimeout(int timeout) throws SocketException {
+        try {
+          connection.setSoTimeout(timeout);
+        } catch (SocketException error) {
+          throw error;
+        } catch (IOException error) {
+          throw new SocketException(error.getMessage());
+        }
+      }
+
+      // NanoHTTPD reads the remote address of every connection. Local connections are
+      // reported as loopback.
+      @Override
+      public InetAddress getInetAddress() {
+        try {
+          return InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
+        } catch (IOException error) {
+          throw new RuntimeException(error);
+        }
+      }
+
+      @Override
+      public boolean isConnected() {
+        return !closed;
+      }
+
+      @Override
+      public boolean isClosed() {
+        return closed;
+      }
+
+      @Override
+      public synchronized void close() throws IOException {
+        if (!closed) {
+          closed = true;
+          connection.close();
+        }
+      }
+    }
+
+    private static class LocalSocketAcceptor implements Acceptor {
+      private final String socketName;
+      private final LocalServerSocket serverSocket;
+      private volatile boolean closed = false;
+
+      LocalSocketAcceptor(String socketName) throws IOException {
+        this.socketName = socketName;
+        this.serverSocket = new LocalServerSocket(socketName);
+      }
+
+      @Override
+      public Connection accept() throws IOException {
+        final LocalSocket socket = serverSocket.accept();
+
+        if (closed) {
+          socket.close();
+          throw new SocketException("closed");
+        }
+
+        return new Connection() {
+          @Override
+          public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+          }
+
+          @Override
+          public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+          }
+
+          @Override
+          public void setSoTimeout(int timeout) throws IOException {
+            socket.setSoTimeout(timeout);
+          }
+
+          @Override
+          public void close() throws IOException {
+            socket.close();
+          }
+        };
+      }
+
+      // Closing a `LocalServerSocket` doesn't wake up a thread blocked in `accept` so
+      // connect to it once after closing.
+      @Override
+      public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+
+        final LocalSocket wakeUp = new LocalSocket();
+
+        try {
+          wakeUp.connect(new LocalSocketAddress(socketName));
+        } catch (IOException ignored) {
+          // Nobody was listening anymore.
+        } finally {
+          wakeUp.close();
+        }
+      }
+    }
+  }
+
+
+
+
+  static class TestContext {
+    final Context context;
+    final Handler handler;
+    final ViewFinder viewFinder;
+    final ElementRegistry elements;
+    final Map<String, Locator> locators = Locator.newCache();
+    final CommandTrace trace = new CommandTrace();
+    final Timeline timeline = new Timeline();
+    final FrameRecorder frameRecorder = new FrameRecorder();
+    final InputLatency inputLatency;
+    final MemorySampler memorySampler = new MemorySampler();
+    final Readiness readiness;
+    final PropertyCache propertyCache;
+    final MainThreadScheduler scheduler;
+    final Watchdog watchdog;
+    final HierarchyTracker hierarchy = new HierarchyTracker();
+
+    long timeout = 10000L;
+    long pollInterval = 100L;
+
+    TestContext(Application app, Handler handler) {
+      this.context = app;
+      this.handler = handler;
+      this.viewFinder = new ViewFinder(app);
+      this.elements = new ElementRegistry(app);
+      this.inputLatency = new InputLatency(viewFinder);
+      this.readiness = new Readiness(app);
+      this.propertyCache = new PropertyCache(app);
+      this.scheduler = new MainThreadScheduler(handler);
+      this.watchdog = new Watchdog(handler);
+    }
+
+    // If the view of the element has been detached, for example because the activity was
+    // recreated, the element is found again with the locator that originally found it.
+    // Must be called in the main thread.
+    View findView(String id) {
+      final ElementRef ref = elements.get(id);
+
+      if (ref == null) {
+        return null;
+      }
+
+      final View view = ref.view.get();
+
+      if (view != null && view.getWindowToken() != null) {
+        return view;
+      }
+
+      elements.markStale();
+
+      if (ref.locator == null) {
+        return view;
+      }
+
+      final View scopeView = ref.scopeId != null ? findView(ref.scopeId) : null;
+
+      if (ref.scopeId != null && scopeView == null) {
+        return view;
+      }
+
+      final List<View> matches = ref.locator.findVisible(this, scopeView);
+
+      if (ref.index >= matches.size()) {
+        return view;
+      }
+
+      final View resolved = matches.get(ref.index);
+      elements.rebind(id, ref, resolved);
+      return resolved;
+    }
+
+    String registerView(View view, Locator locator, int index, String scopeId) {
+      return elements.register(view, locator, index, scopeId);
+    }
+
+    String registerView(View view) {
+      return registerView(view, null, 0, null);
+    }
+  }
+
+
+
+
+  // What an element id refers to. The locator, the index of the match and the scope element
+  // that produced the id are kept so that the element can be found again when its view is
+  // gone.
+  private static class ElementRef {
+    final Locator locator;
+    final int index;
+    final String scopeId;
+    WeakReference<View> view;
+    WeakReference<Object> owner;
+
+    ElementRef(View view, Locator locator, int index, String scopeId) {
+      this.view = new WeakReference<>(view);
+      this.locator = locator;
+      this.index = index;
+      this.scopeId = scopeId;
+    }
+  }
+
+
+
+
+  // Maps element ids to views. The ids are kept in access order and the least recently used
+  // ones are evicted beyond `capacity`. Every id is scoped to the activity that owns its view,
+  // or to the view's window if no activity does, and the ids of an activity are dropped when
+  // it's destroyed. The ids of an activity that is only being recreated are kept unbound, so
+  // that their locators can find the elements again in the new activity. Used from the main
+  // thread and the snapshot workers, so the methods are synchronized.
+  static class ElementRegistry implements Application.ActivityLifecycleCallbacks {
+    static final int DEFAULT_CAPACITY = 10000;
+    private static final int MAX_REPORTED_VIEWS = 20;
+
+    private final WeakHashMap<View, String> ids = new WeakHashMap<>();
+    private final WeakHashMap<Object, Set<String>> idsByOwner = new WeakHashMap<>();
+
+    // The map is never serialized.
+    @SuppressWarnings("serial")
+    private final LinkedHashMap<String, ElementRef> elements = new LinkedHashMap<String, ElementRef>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, ElementRef> eldest) {
+        if (size() <= capacity) {
+          return false;
+        }
+
+        unbind(eldest.getKey(), eldest.getValue());
+        ++evictions;
+        return true;
+      }
+    };
+
+    private int capacity = DEFAULT_CAPACITY;
+    private long hits = 0;
+    private long misses = 0;
+    private long stale = 0;
+    private long rebinds = 0;
+    private long evictions = 0;
+    private long dropped = 0;
+
+    ElementRegistry(Application app) {
+      app.registerActivityLifecycleCallbacks(this);
+    }
+
+    synchronized String register(View view, Locator locator, int index, String scopeId) {
+      String id = ids.get(view);
+
+      // Looking the id up also marks it as recently used.
+      if (id != null && elements.get(id) != null) {
+        return id;
+      }
+
+      id = "element-" + UUID.randomUUID().toString();
+      final ElementRef ref = new ElementRef(view, locator, index, scopeId);
+      bind(id, ref, view);
+      elements.put(id, ref);
+      return id;
+    }
+
+    synchronized ElementRef get(String id) {
+      final ElementRef ref = elements.get(id);
+
+      if (ref != null) {
+        ++hits;
+      } else {
+        ++misses;
+      }
+
+      return ref;
+    }
+
+    // Called when the view of an id has been detached or collected.
+    synchronized void markStale() {
+      ++stale;
+    }
+
+    synchronized void rebind(String id, ElementRef ref, View view) {
+      if (elements.get(id) != ref) {
+        return;
+      }
+
+      unbind(id, ref);
+      bind(id, ref, view);
+      ++rebinds;
+    }
+
+    synchronized void setCapacity(int capacity) {
+      this.capacity = Math.max(1, capacity);
+
+      for (Iterator<Map.Entry<String, ElementRef>> it = elements.entrySet().iterator(); elements.size() > this.capacity; ) {
+        final Map.Entry<String, ElementRef> eldest = it.next();
+        unbind(eldest.getKey(), eldest.getValue());
+        it.remove();
+        ++evictions;
+      }
+    }
+
+    private void bind(String id, ElementRef ref, View view) {
+      final Object owner = ownerOf(view);
+      Set<String> ownedIds = idsByOwner.get(owner);
+
+      if (ownedIds == null) {
+        ownedIds = new HashSet<>();
+        idsByOwner.put(owner, ownedIds);
+      }
+
+      ownedIds.add(id);
+      ids.put(view, id);
+      ref.view = new WeakReference<>(view);
+      ref.owner = new WeakReference<>(owner);
+    }
+
+    private void unbind(String id, ElementRef ref) {
+      final View view = ref.view.get();
+      final Object owner = ref.owner != null ? ref.owner.get() : null;
+
+      if (view != null && id.equals(ids.get(view))) {
+        ids.remove(view);
+      }
+
+      if (owner != null && idsByOwner.containsKey(owner)) {
+        idsByOwner.get(owner).remove(id);
+      }
+
+      ref.view = new WeakReference<>(null);
+      ref.owner = null;
+    }
+
+    // The activity the view was inflated for, or the root of its window.
+    static Object ownerOf(View view) {
+      Context context = view.getContext();
+
+      while (context instanceof ContextWrapper) {
+        if (context instanceof Activity) {
+          return context;
+        }
+
+        context = ((ContextWrapper) context).getBaseContext();
+      }
+
+      return view.getRootView();
+    }
+
+    @Override
+    public synchronized void onActivityDestroyed(Activity activity) {
+      final Set<String> ownedIds = idsByOwner.remove(activity);
+
+      if (ownedIds == null) {
+        return;
+      }
+
+      final boolean recreating = activity.isChangingConfigurations();
+
+      for (String id : ownedIds) {
+        final ElementRef ref = elements.get(id);
+
+        if (ref == null) {
+          continue;
+        }
+
+        final View view = ref.view.get();
+
+        if (view != null) {
+          ids.remove(view);
+        }
+
+        ref.view = new WeakReference<>(null);
+        ref.owner = null;
+
+        if (!recreating || ref.locator == null) {
+          elements.remove(id);
+          ++dropped;
+        }
+      }
+    }
+
+    @Override public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
+    @Override public void onActivityStarted(Activity activity) {}
+    @Override public void onActivityResumed(Activity activity) {}
+    @Override public void onActivityPaused(Activity activity) {}
+    @Override public void onActivityStopped(Activity activity) {}
+    @Override public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+
+    // Must be called in the main thread. Views that are still reachable by id although they
+    // have been detached are listed, since the app is likely to be leaking them.
+    synchronized JsonObject toJson() {
+      final JsonObject detachedViews = JsonObject.newArray();
+      final Map<String, Integer> owners = new HashMap<>();
+      int detached = 0;
+      int unbound = 0;
+
+      for (Map.Entry<String, ElementRef> entry : elements.entrySet()) {
+        final ElementRef ref = entry.getValue();
+        final View view = ref.view.get();
+        final Object owner = ref.owner != null ? ref.owner.get() : null;
+
+        if (view == null) {
+          ++unbound;
+          continue;
+        }
+
+        final String ownerName = owner != null ? owner.getClass().getName() : "unknown";
+        owners.put(ownerName, owners.containsKey(ownerName) ? owners.get(ownerName) + 1 : 1);
+
+        if (view.getWindowToken() == null) {
+          if (detached < MAX_REPORTED_VIEWS) {
+            final JsonObject item = JsonObject.newObject();
+            item.put("id", entry.getKey());
+            item.put("class", view.getClass().getName());
+            item.put("owner", ownerName);
+            detachedViews.add(item);
+          }
+
+          ++detached;
+        }
+      }
+
+      final JsonObject ownerCounts = JsonObject.newObject();
+
+      for (Map.Entry<String, Integer> entry : owners.entrySet()) {
+        ownerCounts.put(entry.getKey(), entry.getValue());
+      }
+
+      final JsonObject json = JsonObject.newObject();
+      json.put("size", elements.size());
+      json.put("capacity", capacity);
+      json.put("hits", hits);
+      json.put("misses", misses);
+      json.put("stale", stale);
+      json.put("rebinds", rebinds);
+      json.put("evictions", evictions);
+      json.put("dropped", dropped);
+      json.put("hitRate", hits + misses > 0 ? hits / (double) (hits + misses) : 0);
+      json.put("staleRate", hits > 0 ? stale / (double) hits : 0);
+      json.put("unbound", unbound);
+      json.put("detached", detached);
+      json.put("detachedViews", detachedViews);
+      json.put("owners", ownerCounts);
+      return json;
+    }
+  }
+
+
+
+
+  // `GET .../fastest/registry` returns the element registry's size and hit, miss and stale
+  // counts, and the views that are reachable by id but detached. `POST .../fastest/registry`
+  // with `{"capacity": 10000, "gc": true}` changes the capacity and optionally collects
+  // garbage first, so that only the views that are really being kept alive are reported.
+  private static class ElementRegistryRequestHandler extends MainThreadRequestHandler {
+
+    ElementRegistryRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getUri().endsWith("fastest/registry");
+    }
+
+    @Override
+    boolean invalidatesCache() {
+      return false;
+    }
+
+    // Collects garbage in the server thread so that the main thread isn't blocked by it.
+    @Override
+    JsonObject handle(NanoHTTPD.IHTTPSession req, JsonObject body) throws Throwable {
+      if (req.getMethod() == NanoHTTPD.Method.POST && body.has("gc") && body.getBoolean("gc")) {
+        Runtime.getRuntime().gc();
+        System.runFinalization();
+        Runtime.getRuntime().gc();
+      }
+
+      return super.handle(req, body);
+    }
+
+    @Override
+    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, Callback<JsonObject> callback) {
+      if (req.getMethod() == NanoHTTPD.Method.POST && body.has("capacity")) {
+        ctx.elements.setCapacity(body.getInt("capacity"));
+      }
+
+      final JsonObject result = JsonObject.newObject();
+      result.put("value", ctx.elements.toJson());
+      callback.done(null, result);
+    }
+  }
+
+
+
+
+  // Schedules FasTest's work in the main thread. In the normal mode tasks are plain messages
+  // that wait behind everything the app has queued. In the front mode immediate tasks are
+  // posted to the front of the queue and in the async mode the messages are asynchronous
+  // (API 22+), so they aren't held back by the sync barriers the view system uses while a
+  // frame is pending.
+  //
+  // To avoid causing jank, clients can limit FasTest work to `budgetNanos` per frame interval.
+  // Tasks over the budget are deferred to the next interval. The delay between
+  // when a task was due and when it ran is recorded.
+  private static class MainThreadScheduler {
+    static final String MODE_NORMAL = "normal";
+    static final String MODE_FRONT = "front";
+    static final String MODE_ASYNC = "async";
+
+    // No cap by default so that the commands run as soon as the main thread gets to them.
+    static final long DEFAULT_BUDGET_NANOS = 0L;
+    private static final long FRAME_NANOS = 16666667L;
+    private static final int DELAY_SAMPLES = 1024;
+
+    private final Handler handler;
+
+    volatile String mode = MODE_NORMAL;
+    volatile long budgetNanos = DEFAULT_BUDGET_NANOS;
+
+    // Only accessed in the main thread.
+    private long sliceStart = 0;
+    private long sliceUsed = 0;
+
+    // Ring buffer of the latest queue delays in nanoseconds.
+    private final long[] delays = new long[DELAY_SAMPLES];
+    private long delayCount = 0;
+    private long maxDelay = 0;
+    private long deferredCount = 0;
+
+    MainThreadScheduler(Handler handler) {
+      this.handler = handler;
+    }
+
+    // Returns the runnable that was actually posted. It can be passed to
+    // `Handler.removeCallbacks`.
+    Runnable post(Runnable task) {
+      return postDelayed(task, 0);
+    }
+
+    Runnable postDelayed(Runnable task, long delayMillis) {
+      final Task scheduled = new Task(task, System.nanoTime() + delayMillis * 1000000L);
+      enqueue(scheduled, delayMillis);
+      return scheduled;
+    }
+
+    private void enqueue(Task task, long delayMillis) {
+      final String mode = this.mode;
+      final Message message = Message.obtain(handler, task);
+
+      if (MODE_ASYNC.equals(mode) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
+        message.setAsynchronous(true);
+      }
+
+      if (MODE_FRONT.equals(mode) && delayMillis <= 0) {
+        handler.sendMessageAtFrontOfQueue(message);
+      } else {
+        handler.sendMessageDelayed(message, delayMillis);
+      }
+    }
+
+    private class Task implements Runnable {
+      private final Runnable task;
+      private final long dueNanos;
+
+      Task(Runnable task, long dueNanos) {
+        this.task = task;
+        this.dueNanos = dueNanos;
+      }
+
+      @Override
+      public void run() {
+        final long start = System.nanoTime();
+
+        if (start - sliceStart >= FRAME_NANOS) {
+          sliceStart = start;
+          sliceUsed = 0;
+        }
+
+        final long budget = budgetNanos;
+
+        if (budget > 0 && sliceUsed >= budget) {
+          synchronized (delays) {
+            ++deferredCount;
+          }
+
+          enqueue(this, Math.max(1, (sliceStart + FRAME_NANOS - start + 999999L) / 1000000L));
+          return;
+        }
+
+        recordDelay(Math.max(0, start - dueNanos));
+
+        try {
+          task.run();
+        } finally {
+          sliceUsed += System.nanoTime() - start;
+        }
+      }
+    }
+
+    private void recordDelay(long delay) {
+      synchronized (delays) {
+        delays[(int) (delayCount % DELAY_SAMPLES)] = delay;
+        maxDelay = Math.max(maxDelay, delay);
+        ++delayCount;
+      }
+    }
+
+    void configure(String mode, long budgetNanos) {
+      if (!MODE_NORMAL.equals(mode) && !MODE_FRONT.equals(mode) && !MODE_ASYNC.equals(mode)) {
+        throw new RuntimeException("unsupported scheduling mode " + mode);
+      }
+
+      this.mode = mode;
+      this.budgetNanos = budgetNanos;
+    }
+
+    JsonObject toJson() {
+      final JsonObject json = JsonObject.newObject();
+      final long[] sorted;
+      final long count;
+      final long max;
+
+      synchronized (delays) {
+        sorted = Arrays.copyOf(delays, (int) Math.min(delayCount, DELAY_SAMPLES));
+        count = delayCount;
+        max = maxDelay;
+        json.put("deferred", deferredCount);
+      }
+
+      Arrays.sort(sorted);
+
+      // The percentiles are over the latest samples but the count and the maximum are over
+      // every task.
+      final JsonObject queueDelay = Percentiles.distribution(sorted);
+      queueDelay.put("count", count);
+      queueDelay.put("maxMs", max / 1e6);
+
+      json.put("mode", mode);
+      json.put("budgetMs", budgetNanos / 1e6);
+      json.put("queueDelay", queueDelay);
+
+      return json;
+    }
+  }
+
+
+
+
+  // Bounds the time the server threads wait for the main thread. Every piece of work handed to
+  // the main thread is registered as a pending task and waited for in short slices. Between the
+  // slices a ping is posted to the front of the main looper's queue. If the ping hasn't been
+  // processed within the stall threshold the main thread is stuck in its current message, for
+  // example in a deadlock, and the wait fails right away instead of running out the command's
+  // deadline. The error carries the main thread's stack trace and the pending tasks.
+  private static class Watchdog {
+    static final long DEFAULT_STALL_THRESHOLD = 5000L;
+    static final long DEADLINE_MARGIN = 5000L;
+    private static final long CHECK_INTERVAL = 250L;
+
+    private final Handler handler;
+    private final Map<Pending, Boolean> pending = new ConcurrentHashMap<>();
+    private final AtomicBoolean pinging = new AtomicBoolean(false);
+    private volatile long pingSentAt = 0;
+    private long stallCount = 0;
+    private long timeoutCount = 0;
+
+    volatile long stallThreshold = DEFAULT_STALL_THRESHOLD;
+
+    private final Runnable pong = new Runnable() {
+      @Override
+      public void run() {
+        pinging.set(false);
+      }
+    };
+
+    static class Pending {
+      final String name;
+      final long createdAt = now();
+      volatile long startedAt = 0;
+
+      Pending(String name) {
+        this.name = name;
+      }
+
+      // Called in the main thread when the task starts running.
+      void started() {
+        startedAt = now();
+      }
+    }
+
+    // The wall clock and uptime may stop advancing together with the main thread in tests, so
+    // the watchdog runs on the monotonic nano clock.
+    private static long now() {
+      return System.nanoTime() / 1000000L;
+    }
+
+    Watchdog(Handler handler) {
+      this.handler = handler;
+    }
+
+    Pending begin(String name) {
+      final Pending task = new Pending(name);
+      pending.put(task, Boolean.TRUE);
+      return task;
+    }
+
+    // Waits until `latch` is released or `timeoutMillis` has passed. On failure `posted` is
+    // removed from the main thread's queue in case it hasn't run yet.
+    void await(CountDownLatch latch, Pending task, Runnable posted, long timeoutMillis) throws InterruptedException {
+      final long deadline = now() + timeoutMillis;
+
+      try {
+        while (!latch.await(CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+          final long now = now();
+          final long stalled = stalledFor(now);
+
+          if (stalled >= stallThreshold) {
+            handler.removeCallbacks(posted);
+
+            synchronized (this) {
+              ++stallCount;
+            }
+
+            throw new WatchdogException(
+              task.name + " failed: main thread has not processed messages for " + stalled + " ms",
+              report(now, stalled)
+            );
+          }
+
+          if (now >= deadline) {
+            handler.removeCallbacks(posted);
+
+            synchronized (this) {
+              ++timeoutCount;
+            }
+
+            throw new WatchdogException(
+              task.name + " did not finish in " + timeoutMillis + " ms",
+              report(now, stalled)
+            );
+          }
+        }
+      } finally {
+        pending.remove(task);
+      }
+    }
+
+    // Returns how long the main thread has left the latest ping unprocessed, sending a new
+    // ping if the previous one has been processed.
+    private long stalledFor(long now) {
+      if (pinging.compareAndSet(false, true)) {
+        pingSentAt = now;
+        final Message message = Message.obtain(handler, pong);
+
+        // Skips sync barriers, which only hold back the queue until the next frame.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
+          message.setAsynchronous(true);
+        }
+
+        handler.sendMessageAtFrontOfQueue(message);
+        return 0;
+      }
+
+      return Math.max(0, now - pingSentAt);
+    }
+
+    JsonObject report(long now, long stalled) {
+      final JsonObject json = JsonObject.newObject();
+      final JsonObject mainThread = JsonObject.newObject();
+      final JsonObject stack = JsonObject.newArray();
+      final JsonObject tasks = JsonObject.newArray();
+      final Thread thread = handler.getLooper().getThread();
+
+      for (StackTraceElement frame : thread.getStackTrace()) {
+        stack.add(frame.toString());
+      }
+
+      mainThread.put("state", thread.getState().name());
+      mainThread.put("unresponsiveMs", stalled);
+      mainThread.put("stack", stack);
+
+      for (Pending task : pending.keySet()) {
+        final JsonObject item = JsonObject.newObject();
+        item.put("name", task.name);
+        item.put("ageMs", now - task.createdAt);
+        item.put("runningMs", task.startedAt != 0 ? now - task.startedAt : 0);
+        item.put("started", task.startedAt != 0);
+        tasks.add(item);
+      }
+
+      json.put("mainThread", mainThread);
+      json.put("pending", tasks);
+      return json;
+    }
+
+    JsonObject toJson() {
+      final long now = now();
+      final JsonObject json = report(now, pinging.get() ? now - pingSentAt : 0);
+
+      synchronized (this) {
+        json.put("stalls", stallCount);
+        json.put("timeouts", timeoutCount);
+      }
+
+      json.put("stallThresholdMs", stallThreshold);
+      return json;
+    }
+  }
+
+
+
+
+  static class WatchdogException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    // The report is only read by the server that caught the exception.
+    final transient JsonObject report;
+
+    WatchdogException(String message, JsonObject report) {
+      super(message);
+      this.report = report;
+    }
+  }
+
+
+
+
+  // Cache of element property reads keyed by a UI generation counter. The generation is
+  // advanced in the main thread whenever something the properties depend on may have changed:
+  // layout, draw, scroll and focus changes in the observed windows, text changes of cached
+  // text views, activity lifecycle events and every command that may change the UI. A cached
+  // value is only returned while the generation it was read at is still current, so a hit is
+  // consistent with the UI as of the last frame.
+  private static class PropertyCache implements
+    Application.ActivityLifecycleCallbacks,
+    ViewTreeObserver.OnGlobalLayoutListener,
+    ViewTreeObserver.OnPreDrawListener,
+    ViewTreeObserver.OnScrollChangedListener,
+    ViewTreeObserver.OnGlobalFocusChangeListener,
+    TextWatcher {
+
+    private static final int MAX_ENTRIES = 1024;
+
+    // Written only in the main thread.
+    private volatile long generation = 0;
+    private volatile long changedAtNanos = 0;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // Only accessed in the main thread.
+    private final WeakHashMap<ViewTreeObserver, Boolean> observers = new WeakHashMap<>();
+    private final WeakHashMap<TextView, Boolean> textViews = new WeakHashMap<>();
+
+    private static class Entry {
+      final long generation;
+      final JsonObject value;
+
+      Entry(long generation, JsonObject value) {
+        this.generation = generation;
+        this.value = value;
+      }
+    }
+
+    PropertyCache(Application app) {
+      app.registerActivityLifecycleCallbacks(this);
+    }
+
+    JsonObject get(String key) {
+      final Entry entry = entries.get(key);
+      return entry != null && entry.generation == generation ? entry.value : null;
+    }
+
+    void put(String key, View view, JsonObject value) {
+      observe(view);
+
+      if (entries.size() >= MAX_ENTRIES) {
+        entries.clear();
+      }
+
+      entries.put(key, new Entry(generation, value));
+    }
+
+    void invalidate() {
+      ++generation;
+      changedAtNanos = System.nanoTime();
+    }
+
+    long generation() {
+      return generation;
+    }
+
+    long changedAtNanos() {
+      return changedAtNanos;
+    }
+
+    void observe(View view) {
+      final ViewTreeObserver observer = view.getViewTreeObserver();
+
+      if (observer.isAlive() && !observers.containsKey(observer)) {
+        observer.addOnGlobalLayoutListener(this);
+        observer.addOnPreDrawListener(this);
+        observer.addOnScrollChangedListener(this);
+        observer.addOnGlobalFocusChangeListener(this);
+        observers.put(observer, Boolean.TRUE);
+      }
+
+      // `setText` only invalidates the view and the draw happens in the next frame.
+      if (view instanceof TextView && !textViews.containsKey(view)) {
+        ((TextView) view).addTextChangedListener(this);
+        textViews.put((TextView) view, Boolean.TRUE);
+      }
+    }
+
+    @Override public void onGlobalLayout() { invalidate(); }
+    @Override public void onScrollChanged() { invalidate(); }
+    @Override public void onGlobalFocusChanged(View oldFocus, View newFocus) { invalidate(); }
+
+    @Override
+    public boolean onPreDraw() {
+      invalidate();
+      return true;
+    }
+
+    @Override public void beforeTextChanged(CharSequence text, int start, int count, int after) {}
+    @Override public void onTextChanged(CharSequence text, int start, int before, int count) {}
+    @Override public void afterTextChanged(Editable text) { invalidate(); }
+
+    @Override public void onActivityCreated(Activity activity, Bundle savedInstanceState) { invalidate(); }
+    @Override public void onActivityStarted(Activity activity) { invalidate(); }
+    @Override public void onActivityResumed(Activity activity) { invalidate(); }
+    @Override public void onActivityPaused(Activity activity) { invalidate(); }
+    @Override public void onActivityStopped(Activity activity) { invalidate(); }
+    @Override public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+    @Override public void onActivityDestroyed(Activity activity) { invalidate(); }
+  }
+
+
+
+
+  // Startup state of the server. The fields are written once, from the startup thread and the
+  // main thread, and read on every request without locking.
+  private static class Readiness implements Application.ActivityLifecycleCallbacks {
+    private final Application app;
+
+    final long initAt = SystemClock.uptimeMillis();
+    volatile int port = -1;
+    volatile String socketName;
+    volatile long boundAt = -1;
+    volatile long firstActivityResumedAt = -1;
+    volatile String error;
+
+    Readiness(Application app) {
+      this.app = app;
+      app.registerActivityLifecycleCallbacks(this);
+    }
+
+    boolean isReady() {
+      return firstActivityResumedAt >= 0;
+    }
+
+    void bound(int port, String socketName) {
+      this.port = port;
+      this.socketName = socketName;
+      this.boundAt = SystemClock.uptimeMillis();
+    }
+
+    JsonObject toJson() {
+      final JsonObject json = JsonObject.newObject();
+
+      json.put("ready", isReady());
+      json.put("message", error != null ? error : isReady() ? "ready" : "waiting for the first activity");
+      json.put("port", port);
+
+      if (socketName != null) {
+        json.put("socket", "localabstract:" + socketName);
+      }
+
+      json.put("initAt", initAt);
+      json.put("boundAt", boundAt);
+      json.put("firstActivityResumedAt", firstActivityResumedAt);
+
+      return json;
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity) {
+      if (firstActivityResumedAt < 0) {
+        firstActivityResumedAt = SystemClock.uptimeMillis();
+        app.unregisterActivityLifecycleCallbacks(this);
+      }
+    }
+
+    @Override public void onActivityCreated(Activity activity, Bundle savedInstanceState) {}
+    @Override public void onActivityStarted(Activity activity) {}
+    @Override public void onActivityPaused(Activity activity) {}
+    @Override public void onActivityStopped(Activity activity) {}
+    @Override public void onActivitySaveInstanceState(Activity activity, Bundle outState) {}
+    @Override public void onActivityDestroyed(Activity activity) {}
+  }
+
+
+
+
+  interface Func<V, R> {
+    R run(V value);
+  }
+
+
+
+
+  private interface Callback<T> {
+    void done(Throwable error, T result);
+  }
+
+
+
+
+  private static class RequestHandlerResult {
+    JsonObject result;
+    Throwable error;
+  }
+
+
+
+
+  private static abstract class RequestHandler {
+    protected final TestContext ctx;
+
+    RequestHandler(TestContext ctx) {
+      this.ctx = ctx;
+    }
+
+    abstract boolean canHandle(NanoHTTPD.IHTTPSession req);
+    abstract JsonObject handle(NanoHTTPD.IHTTPSession req, JsonObject body) throws Throwable;
+  }
+
+
+
+
+  // Base class for handlers that work with the UI. The work is posted to the main thread and
+  // the server's request thread waits for it under the watchdog.
+  private static abstract class MainThreadRequestHandler extends RequestHandler {
+
+    MainThreadRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    abstract void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, Callback<JsonObject> callback);
+
+    // Whether the command may change the UI, in which case the cached element properties
+    // are invalidated before and after it.
+    boolean invalidatesCache() {
+      return true;
+    }
+
+    // How long the command may take before the watchdog fails it. Commands that wait for
+    // something in the UI wait at most the implicit wait timeout by default.
+    long deadline(JsonObject body) {
+      return ctx.timeout + Watchdog.DEADLINE_MARGIN;
+    }
+
+    @Override
+    JsonObject handle(final NanoHTTPD.IHTTPSession req, final JsonObject body) throws Throwable {
+      final CountDownLatch latch = new CountDownLatch(1);
+      final RequestHandlerResult result = new RequestHandlerResult();
+
+      final String command = req.getMethod().name() + " " + req.getUri();
+      final String session = Timeline.sessionOf(req.getUri());
+      final Watchdog.Pending task = ctx.watchdog.begin(command);
+
+      final Runnable posted = ctx.scheduler.post(ctx.timeline.wrap(getClass().getSimpleName(), command, session, new Runnable() {
+        @Override
+        public void run() {
+          task.started();
+
+          if (invalidatesCache()) {
+            ctx.propertyCache.invalidate();
+          }
+
+          try {
+            handleInMainThread(req, body, new Callback<JsonObject>() {
+              @Override
+              public void done(Throwable error, JsonObject res) {
+                if (invalidatesCache()) {
+                  ctx.propertyCache.invalidate();
+                }
+
+                result.result = res;
+                result.error = error;
+                latch.countDown();
+              }
+            });
+          } catch (Throwable err) {
+            result.result = null;
+            result.error = err;
+            latch.countDown();
+          }
+        }
+      }));
+
+      // Wait here until the work is done in the main thread.
+      ctx.watchdog.await(latch, task, posted, deadline(body));
+
+      if (result.error != null) {
+        throw result.error;
+      }
+
+      return result.result;
+    }
+  }
+
+
+
+
+  // Base class for handlers that don't touch the UI and therefore run directly in the
+  // server's request thread instead of the main thread.
+  private static abstract class ServerThreadRequestHandler extends RequestHandler {
+
+    ServerThreadRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    abstract JsonObject handleInServerThread(NanoHTTPD.IHTTPSession req, JsonObject body) throws Throwable;
+
+    @Override
+    JsonObject handle(NanoHTTPD.IHTTPSession req, JsonObject body) throws Throwable {
+      return handleInServerThread(req, body);
+    }
+  }
+
+
+
+
+  private static abstract class ElementRequestHandler extends MainThreadRequestHandler {
+
+    ElementRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    View findElementView(NanoHTTPD.IHTTPSession req) {
+      String[] uriParts = req.getUri().split("/");
+      return findElementView(uriParts[uriParts.length - 2]);
+    }
+
+    View findElementView(String id) {
+      View view = ctx.findView(id);
+
+      if (view == null) {
+        throw new RuntimeException("no such element " + id);
+      }
+
+      return view;
+    }
+  }
+
+
+
+
+  // Base class for read-only element properties. The results are cached per element and are
+  // served directly in the server thread while the UI generation they were read at is still
+  // current. See `PropertyCache`.
+  private static abstract class CachedElementRequestHandler extends ElementRequestHandler {
+
+    CachedElementRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    abstract JsonObject readProperty(View view);
+
+    @Override
+    boolean invalidatesCache() {
+      return false;
+    }
+
+    @Override
+    JsonObject handle(NanoHTTPD.IHTTPSession req, JsonObject body) throws Throwable {
+      final JsonObject cached = ctx.propertyCache.get(cacheKey(req));
+      return cached != null ? cached : super.handle(req, body);
+    }
+
+    @Override
+    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, Callback<JsonObject> callback) {
+      final View view = findElementView(req);
+      final JsonObject result = readProperty(view);
+
+      ctx.propertyCache.put(cacheKey(req), view, result);
+      callback.done(null, result);
+    }
+
+    // `<element id>/<property>`
+    static String cacheKey(NanoHTTPD.IHTTPSession req) {
+      final String uri = req.getUri();
+      final int propertyStart = uri.lastIndexOf('/');
+      return uri.substring(uri.lastIndexOf('/', propertyStart - 1) + 1);
+    }
+  }
+
+
+
+
+  private static class StatusRequestHandler extends ServerThreadRequestHandler {
+
+    StatusRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    static boolean isStatusRequest(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.GET && req.getUri().endsWith("/status");
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return isStatusRequest(req);
+    }
+
+    @Override
+    JsonObject handleInServerThread(NanoHTTPD.IHTTPSession req, JsonObject body) {
+      final JsonObject result = JsonObject.newObject();
+      result.put("value", ctx.readiness.toJson());
+      return result;
+    }
+  }
+
+
+
+
+  // `GET .../fastest/scheduler` returns the scheduling mode and the measured main thread
+  // queue delays. `POST .../fastest/scheduler` with `{"mode": "normal" | "front" | "async",
+  // "budgetMs": 8}` changes the mode. A budget of 0, the default, disables the per-frame cap.
+  private static class SchedulerRequestHandler extends ServerThreadRequestHandler {
+
+    SchedulerRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getUri().endsWith("fastest/scheduler");
+    }
+
+    @Override
+    JsonObject handleInServerThread(NanoHTTPD.IHTTPSession req, JsonObject body) {
+      if (req.getMethod() == NanoHTTPD.Method.POST) {
+        ctx.scheduler.configure(
+          body.has("mode") ? body.getString("mode") : ctx.scheduler.mode,
+          body.has("budgetMs") ? (long) (body.getDouble("budgetMs") * 1e6) : ctx.scheduler.budgetNanos
+        );
+      }
+
+      final JsonObject result = JsonObject.newObject();
+      result.put("value", ctx.scheduler.toJson());
+      return result;
+    }
+  }
+
+
+
+
+  // `GET .../fastest/watchdog` returns the main thread's stack trace, the pending tasks and the
+  // number of failed waits. `POST .../fastest/watchdog` with `{"stallThresholdMs": 5000}` sets
+  // how long the main thread may leave a message unprocessed before the waits fail.
+  private static class WatchdogRequestHandler extends ServerThreadRequestHandler {
+
+    WatchdogRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getUri().endsWith("fastest/watchdog");
+    }
+
+    @Override
+    JsonObject handleInServerThread(NanoHTTPD.IHTTPSession req, JsonObject body) {
+      if (req.getMethod() == NanoHTTPD.Method.POST && body.has("stallThresholdMs")) {
+        ctx.watchdog.stallThreshold = body.getLong("stallThresholdMs");
+      }
+
+      final JsonObject result = JsonObject.newObject();
+      result.put("value", ctx.watchdog.toJson());
+      return result;
+    }
+  }
+
+
+
+
+  private static class CreateSessionRequestHandler extends MainThreadRequestHandler {
+
+    CreateSessionRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("session");
+    }
+
+    @Override
+    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, Callback<JsonObject> callback) {
+      JsonObject result = JsonObject.newObject();
+      result.put("sessionId", UUID.randomUUID().toString());
+      callback.done(null, result);
+    }
+  }
+
+
+
+
+  private static class ImplicitWaitRequestHandler extends MainThreadRequestHandler {
+
+    ImplicitWaitRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("implicit_wait");
+    }
+
+    @Override
+    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, Callback<JsonObject> callback) {
+      ctx.timeout = body.getLong("ms");
+      callback.done(null, JsonObject.newObject());
+    }
+  }
+
+
+
+
+  private static class GetWindowRectRequestHandler extends MainThreadRequestHandler {
+
+    GetWindowRectRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.GET && req.getUri().endsWith("window/rect");
+    }
+
+    @Override
+    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, final Callback<JsonObject> callback) {
+      JsonObject result = JsonObject.newObject();
+      JsonObject rectJson = JsonObject.newObject();
+      Rect rect = ViewUtils.getWindowRect(ctx.viewFinder.getRootView());
+      rectJson.put("x", rect.left);
+      rectJson.put("y", rect.top);
+      rectJson.put("width", rect.width());
+      rectJson.put("height", rect.height());
+      result.put("value", rectJson);
+      callback.done(null, result);
+    }
+  }
+
+
+
+
+  // Base class for the element finding handlers. Finds from the whole screen when the URI is
+  // `.../element(s)` and from the descendants of an element when the URI is
+  // `.../element/:id/element(s)`.
+  private static abstract class FindRequestHandler extends MainThreadRequestHandler {
+    private static final Pattern SCOPE_PATTERN = Pattern.compile("/element/([^/]+)/elements?$");
+
+    FindRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean invalidatesCache() {
+      return false;
+    }
+
+    static String findScopeId(NanoHTTPD.IHTTPSession req) {
+      final Matcher matcher = SCOPE_PATTERN.matcher(req.getUri());
+      return matcher.find() ? matcher.group(1) : null;
+    }
+
+    static View findScopeView(TestContext ctx, NanoHTTPD.IHTTPSession req) {
+      final String scopeId = findScopeId(req);
+
+      if (scopeId == null) {
+        return null;
+      }
+
+      final View view = ctx.findView(scopeId);
+
+      if (view == null) {
+        throw new RuntimeException("no such element " + scopeId);
+      }
+
+      return view;
+    }
+
+    // `index` is the position of the view in the visible matches of `locator`. The element is
+    // tagged with its window, see `ViewFinder.windowJson`.
+    static JsonObject elementJson(TestContext ctx,
+                                  View view,
+                                  Locator locator,
+                                  int index,
+                                  String scopeId,
+                                  List<View> windows) {
+      JsonObject element = JsonObject.newObject();
+      element.put("ELEMENT", ctx.registerView(view, locator, index, scopeId));
+      element.put("window", ViewFinder.windowJson(view.getRootView(), windows));
+      return element;
+    }
+  }
+
+
+
+
+  // Finds all matching elements. The main thread only captures a `HierarchySnapshot` of the
+  // windows (or of the scope element) and registers the matches. The locator is evaluated
+  // against the snapshot in the worker pool, so complex locators don't block the main thread.
+  static class GetElementsRequestHandler extends ServerThreadRequestHandler {
+
+    GetElementsRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("elements");
+    }
+
+    @Override
+    JsonObject handleInServerThread(final NanoHTTPD.IHTTPSession req, JsonObject body) throws Throwable {
+      final Locator locator = Locator.compile(ctx, body.getString("using"), body.getString("value"));
+      final String scopeId = FindRequestHandler.findScopeId(req);
+      final long startTime = System.currentTimeMillis();
+      final List<View> windows = new ArrayList<>();
+      int[] matches;
+      HierarchySnapshot snapshot;
+
+      while (true) {
+        snapshot = AsyncUtils.callInMainThread(ctx, "capture snapshot", new Func<Void, HierarchySnapshot>() {
+          @Override
+          public HierarchySnapshot run(Void value) {
+            final View scopeView = FindRequestHandler.findScopeView(ctx, req);
+
+            windows.clear();
+            windows.addAll(ctx.viewFinder.getVisibleRootViews());
+
+            if (scopeView != null) {
+              return HierarchySnapshot.capture(Collections.singletonList(scopeView), ViewUtils.getWindowRect(scopeView));
+            } else {
+              return HierarchySnapshot.capture(windows, ViewUtils.getWindowRect(ctx.viewFinder.getRootView()));
+            }
+          }
+        });
+
+        // The scope element itself is the first node of a scoped snapshot and is never a match.
+        matches = snapshot.findVisible(locator, scopeId != null ? 1 : 0);
+
+        if (matches.length > 0 || System.currentTimeMillis() - startTime >= ctx.timeout) {
+          break;
+        }
+
+        Thread.sleep(ctx.pollInterval);
+      }
+
+      final int[] found = matches;
+      final HierarchySnapshot foundSnapshot = snapshot;
+
+      // Registering an element and tagging its window touch the live views.
+      final JsonObject elements = AsyncUtils.callInMainThread(ctx, "register", new Func<Void, JsonObject>() {
+        @Override
+        public JsonObject run(Void value) {
+          final JsonObject array = JsonObject.newArray();
+
+          for (int i = 0; i < found.length; ++i) {
+            final View view = foundSnapshot.views[found[i]];
+            array.add(FindRequestHandler.elementJson(ctx, view, locator, i, scopeId, windows));
+          }
+
+          return array;
+        }
+      });
+
+      JsonObject result = JsonObject.newObject();
+      result.put("value", elements);
+      return result;
+    }
+  }
+
+
+
+
+  private static class GetElementRequestHandler extends FindRequestHandler {
+
+    GetElementRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("element");
+    }
+
+    @Override
+    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, final Callback<JsonObject> callback) {
+      final Locator locator = Locator.compile(ctx, body.getString("using"), body.getString("value"));
+      final String scopeId = findScopeId(req);
+      final View scopeView = findScopeView(ctx, req);
+
+      AsyncUtils.poll(ctx, "find element", ctx.pollInterval, ctx.timeout, new Func<Void, View>() {
+        @Override
+        public View run(Void value) {
+          // Stops the traversal at the first visible match.
+          if (scopeView != null) {
+            final Rect windowRect = ViewUtils.getWindowRect(scopeView);
+            return ctx.viewFinder.findFirstView(scopeView, locator.visibleTester(scopeView, windowRect));
+          } else {
+            final Rect windowRect = ViewUtils.getWindowRect(ctx.viewFinder.getRootView());
+            return ctx.viewFinder.findFirstViewInWindows(locator.visibleTester(null, windowRect));
+          }
+        }
+      }, new Callback<View>() {
+        @Override
+        public void done(Throwable error, View view) {
+          if (error != null) {
+            callback.done(error, null);
+          } else if (view == null) {
+            callback.done(new RuntimeException("no such element"), null);
+          } else {
+            final List<View> windows = ctx.viewFinder.getVisibleRootViews();
+            JsonObject result = JsonObject.newObject();
+            result.put("value", elementJson(ctx, view, locator, 0, scopeId, windows));
+            callback.done(null, result);
+          }
+        }
+      });
+    }
+  }
+
+
+
+
+  // Waits until a condition on the elements matching a locator holds. The condition is
+  // checked every poll interval and after every layout pass, so the client doesn't need to
+  // poll it with separate commands. Body:
+  //
+  //   {"using": ..., "value": ..., "condition": "text == 'Done'", "timeout": 5000, "element": id}
+  //
+  // `element` optionally limits the search to the descendants of an element. See
+  // `Condition` for the supported conditions.
+  private static class WaitRequestHandler extends FindRequestHandler {
+
+    WaitRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("/wait");
+    }
+
+    @Override
+    long deadline(JsonObject body) {
+      return (body.has("timeout") ? body.getLong("timeout") : ctx.timeout) + Watchdog.DEADLINE_MARGIN;
+    }
+
+    @Override
+    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, final Callback<JsonObject> callback) {
+      final Locator locator = Locator.compile(ctx, body.getString("using"), body.getString("value"));
+      final Condition condition = Condition.parse(body.getString("condition"));
+      final long timeout = body.has("timeout") ? body.getLong("timeout") : ctx.timeout;
+      final long startTime = SystemClock.uptimeMillis();
+      final String scopeId = body.has("element") ? body.getString("element") : null;
+      final View scopeView = scopeId != null ? ctx.findView(scopeId) : null;
+
+      if (scopeId != null && scopeView == null) {
+        throw new RuntimeException("no such element " + scopeId);
+      }
+
+      final View observedView = scopeView != null ? scopeView : ctx.viewFinder.getRootView();
+
+      AsyncUtils.pollOnLayout(ctx, "wait", ctx.pollInterval, timeout, observedView, new Func<Void, List<View>>() {
+        @Override
+        public List<View> run(Void value) {
+          final List<View> views = locator.findVisible(ctx, scopeView);
+          return condition.holds(views) ? views : null;
+        }
+      }, new Callback<List<View>>() {
+        @Override
+        public void done(Throwable error, List<View> views) {
+          if (error != null) {
+            callback.done(error, null);
+          } else if (views == null) {
+            callback.done(new RuntimeException("timed out waiting for " + condition), null);
+          } else {
+            JsonObject value = JsonObject.newObject();
+            JsonObject result = JsonObject.newObject();
+
+            value.put("count", views.size());
+            value.put("elapsedMs", SystemClock.uptimeMillis() - startTime);
+
+            if (!views.isEmpty()) {
+              final List<View> windows = ctx.viewFinder.getVisibleRootViews();
+              value.put("element", elementJson(ctx, views.get(0), locator, 0, scopeId, windows));
+            }
+
+            result.put("value", value);
+            callback.done(null, result);
+          }
+        }
+      });
+    }
+  }
+
+
+
+
+  // A condition on the list of visible elements matching a locator. Conditions are clauses
+  // joined with `&&`. A clause is one of
+  //
+  //   present, gone, displayed, enabled, disabled, selected, checked
+  //   count (== | != | > | >= | < | <=) <number>
+  //   text (== | != | contains | matches) '<string>'
+  //
+  // `count`, `present` and `gone` look at all matches. The other clauses look at the first match
+  // and are false if there are no matches.
+  static class Condition {
+    private static final Pattern CLAUSE_PATTERN = Pattern.compile(
+      "\\s*(\\w+)\\s*(?:(==|!=|>=|<=|>|<|contains\\b|matches\\b)\\s*(?:'([^']*)'|\"([^\"]*)\"|(-?\\d+)))?\\s*"
+    );
+
+    private final String source;
+    private final List<Clause> clauses;
+
+    private Condition(String source, List<Clause> clauses) {
+      this.source = source;
+      this.clauses = clauses;
+    }
+
+    private static class Clause {
+      final String property;
+      final String operator;
+      final String operand;
+      final Pattern pattern;
+
+      Clause(String property, String operator, String operand) {
+        this.property = property;
+        this.operator = operator;
+        this.operand = operand;
+        this.pattern = "matches".equals(operator) ? Pattern.compile(operand) : null;
+      }
+    }
+
+    static Condition parse(String source) {
+      final List<Clause> clauses = new ArrayList<>();
+
+      for (String part : splitClauses(source)) {
+        final Matcher matcher = CLAUSE_PATTERN.matcher(part);
+
+        if (!matcher.matches()) {
+          throw new RuntimeException("invalid condition " + source);
+        }
+
+        final String property = matcher.group(1);
+        final String operator = matcher.group(2);
+        final String operand = matcher.group(3) != null ? matcher.group(3) : matcher.group(4) != null ? matcher.group(4) : matcher.group(5);
+
+        if ("count".equals(property)) {
+          if (operator == null || matcher.group(5) == null) {
+            throw new RuntimeException("count needs a numeric comparison in " + source);
+          }
+        } else if ("text".equals(property)) {
+          if (operator == null || operator.matches("[<>].*") || matcher.group(5) != null) {
+            throw new RuntimeException("text needs a string comparison in " + source);
+          }
+        } else if (!property.matches("present|gone|displayed|enabled|disabled|selected|checked") || operator != null) {
+          throw new RuntimeException("invalid condition " + source);
+        }
+
+        clauses.add(new Clause(property, operator, operand));
+      }
+
+      return new Condition(source, clauses);
+    }
+
+    // Splits on `&&` outside of quotes.
+    static List<String> splitClauses(String source) {
+      final List<String> parts = new ArrayList<>();
+      char quote = 0;
+      int start = 0;
+
+      for (int i = 0; i < source.length(); ++i) {
+        final char c = source.charAt(i);
+
+        if (quote != 0) {
+          if (c == quote) {
+            quote = 0;
+          }
+        } else if (c == '\'' || c == '"') {
+          quote = c;
+        } else if (c == '&' && i + 1 < source.length() && source.charAt(i + 1) == '&') {
+          parts.add(source.substring(start, i));
+          start = i + 2;
+          ++i;
+        }
+      }
+
+      parts.add(source.substring(start));
+      return parts;
+    }
+
+    boolean holds(List<View> views) {
+      for (Clause clause : clauses) {
+        if (!holds(clause, views)) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+
+    static boolean holds(Clause clause, List<View> views) {
+      final View first = views.isEmpty() ? null : views.get(0);
+
+      switch (clause.property) {
+        case "count":
+          return compare(views.size(), Integer.parseInt(clause.operand), clause.operator);
+        case "present":
+        case "displayed":
+          return first != null;
+        case "gone":
+          return first == null;
+        case "enabled":
+          return first != null && first.isEnabled();
+        case "disabled":
+          return first != null && !first.isEnabled();
+        case "selected":
+          return first != null && first.isSelected();
+        case "checked":
+          return first instanceof CompoundButton && ((CompoundButton) first).isChecked();
+        default:
+          return first instanceof TextView && matchText(((TextView) first).getText().toString(), clause);
+      }
+    }
+
+    static boolean matchText(String text, Clause clause) {
+      switch (clause.operator) {
+        case "==":
+          return text.equals(clause.operand);
+        case "!=":
+          return !text.equals(clause.operand);
+        case "contains":
+          return text.contains(clause.operand);
+        default:
+          return clause.pattern.matcher(text).find();
+      }
+    }
+
+    static boolean compare(int left, int right, String operator) {
+      switch (operator) {
+        case "==": return left == right;
+        case "!=": return left != right;
+        case ">": return left > right;
+        case ">=": return left >= right;
+        case "<": return left < right;
+        default: return left <= right;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return source;
+    }
+  }
+
+
+
+
+  // The subset of XPath the `xpath` locator strategy supports. An expression is a list of steps
+  //
+  //   //<class>    a descendant of the previous step, or any node if it's the first step
+  //   /<class>     a child of the previous step, or a root view if it's the first step
+  //   /following-sibling::<class>
+  //   /preceding-sibling::<class>
+  //
+  // where <class> is a fully qualified view class or `*`. Each step can have any number of
+  // predicates: `[@text='..']`, `[@enabled='true']` and `[@selected='true']` compare an
+  // attribute, and `[n]` selects the n:th node of the step's axis that matches the class and
+  // the predicates before it. Functions, other axes and other attributes are not supported.
+  //
+  // Expressions are evaluated from the last step backwards so that a node can be tested
+  // without evaluating the whole expression from the roots. The same expression is evaluated
+  // against live views and against `HierarchySnapshot`s through the `Tree` interface.
+  static class XPath {
+    static final int AXIS_CHILD = 0;
+    static final int AXIS_DESCENDANT = 1;
+    static final int AXIS_FOLLOWING_SIBLING = 2;
+    static final int AXIS_PRECEDING_SIBLING = 3;
+
+    private static final Pattern STEP_PATTERN = Pattern.compile(
+      "(//|/)(following-sibling::|preceding-sibling::)?(\\*|[\\w$.]++(?!:))"
+    );
+    private static final Pattern PREDICATE_PATTERN = Pattern.compile(
+      "\\[\\s*(?:@(text|enabled|selected)\\s*=\\s*(?:'([^']*)'|\"([^\"]*)\")|(\\d+))\\s*\\]"
+    );
+
+    private final String source;
+    private final List<Step> steps;
+
+    private XPath(String source, List<Step> steps) {
+      this.source = source;
+      this.steps = steps;
+    }
+
+    private static class Step {
+      final int axis;
+      final Class<?> viewClass;
+      final List<Predicate> predicates = new ArrayList<>();
+      boolean positional;
+
+      Step(int axis, Class<?> viewClass) {
+        this.axis = axis;
+        this.viewClass = viewClass;
+      }
+    }
+
+    private static class Predicate {
+      final String attribute;
+      final String value;
+      final int position;
+
+      Predicate(String attribute, String value, int position) {
+        this.attribute = attribute;
+        this.value = value;
+        this.position = position;
+      }
+    }
+
+    // A tree of nodes of type `N`. `siblingsOf` returns the children of the node's parent, or
+    // all roots if the node is a root, in document order.
+    interface Tree<N> {
+      N parentOf(N node);
+      List<N> siblingsOf(N node);
+      Class<?> classOf(N node);
+      String attributeOf(N node, String attribute);
+    }
+
+    static XPath parse(String source) {
+      final List<Step> steps = new ArrayList<>();
+      final Matcher stepMatcher = STEP_PATTERN.matcher(source);
+      final Matcher predicateMatcher = PREDICATE_PATTERN.matcher(source);
+      int offset = 0;
+
+      while (offset < source.length()) {
+        if (!stepMatcher.find(offset) || stepMatcher.start() != offset) {
+          throw new RuntimeException("invalid or unsupported xpath " + source);
+        }
+
+        final String axis = stepMatcher.group(2);
+        final Step step = new Step(
+          axis == null ? "//".equals(stepMatcher.group(1)) ? AXIS_DESCENDANT : AXIS_CHILD
+            : axis.startsWith("following") ? AXIS_FOLLOWING_SIBLING : AXIS_PRECEDING_SIBLING,
+          "*".equals(stepMatcher.group(3)) ? null : classForName(stepMatcher.group(3))
+        );
+
+        // Sibling axes need a context step and `//` before them would mean something else.
+        if (axis != null && (steps.isEmpty() || "//".equals(stepMatcher.group(1)))) {
+          throw new RuntimeException("invalid or unsupported xpath " + source);
+        }
+
+        offset = stepMatcher.end();
+
+        while (predicateMatcher.find(offset) && predicateMatcher.start() == offset) {
+          if (predicateMatcher.group(4) != null) {
+            final int position = Integer.parseInt(predicateMatcher.group(4));
+
+            if (position < 1) {
+              throw new RuntimeException("invalid or unsupported xpath " + source);
+            }
+
+            step.predicates.add(new Predicate(null, null, position));
+            step.positional = true;
+          } else {
+            final String value = predicateMatcher.group(2) != null
+              ? predicateMatcher.group(2)
+              : predicateMatcher.group(3);
+
+            step.predicates.add(new Predicate(predicateMatcher.group(1), value, 0));
+          }
+
+          offset = predicateMatcher.end();
+        }
+
+        steps.add(step);
+      }
+
+      if (steps.isEmpty()) {
+        throw new RuntimeException("invalid or unsupported xpath " + source);
+      }
+
+      return new XPath(source, steps);
+    }
+
+    private static Class<?> classForName(String className) {
+      try {
+        return Class.forName(className);
+      } catch (Throwable error) {
+        throw new RuntimeException(error);
+      }
+    }
+
+    <N> boolean matches(Tree<N> tree, N node) {
+      return matches(tree, node, steps.size() - 1);
+    }
+
+    private <N> boolean matches(Tree<N> tree, N node, int index) {
+      final Step step = steps.get(index);
+
+      if (!matchesClass(tree, node, step) || !matchesAttributes(tree, node, step)) {
+        return false;
+      }
+
+      switch (step.axis) {
+        case AXIS_CHILD: {
+          final N parent = tree.parentOf(node);
+
+          if (step.positional && !matchesPositions(tree, node, step, tree.siblingsOf(node))) {
+            return false;
+          }
+
+          return index == 0 ? parent == null : parent != null && matches(tree, parent, index - 1);
+        }
+
+        case AXIS_DESCENDANT: {
+          if (step.positional && !matchesPositions(tree, node, step, tree.siblingsOf(node))) {
+            return false;
+          }
+
+          if (index == 0) {
+            return true;
+          }
+
+          for (N ancestor = tree.parentOf(node); ancestor != null; ancestor = tree.parentOf(ancestor)) {
+            if (matches(tree, ancestor, index - 1)) {
+              return true;
+            }
+          }
+
+          return false;
+        }
+
+        default: {
+          // The context is a sibling before the node for `following-sibling` and after it for
+          // `preceding-sibling`. Positions are counted away from the context.
+          final List<N> siblings = tree.siblingsOf(node);
+          final int nodeIndex = siblings.indexOf(node);
+          final boolean following = step.axis == AXIS_FOLLOWING_SIBLING;
+          final int from = following ? nodeIndex - 1 : nodeIndex + 1;
+          final int direction = following ? -1 : 1;
+
+          for (int i = from; i >= 0 && i < siblings.size(); i += direction) {
+            if (step.positional) {
+              final List<N> axis = following
+                ? siblings.subList(i + 1, siblings.size())
+                : reversed(siblings.subList(0, i));
+
+              if (!matchesPositions(tree, node, step, axis)) {
+                continue;
+              }
+            }
+
+            if (matches(tree, siblings.get(i), index - 1)) {
+              return true;
+            }
+          }
+
+          return false;
+        }
+      }
+    }
+
+    private static <N> boolean matchesClass(Tree<N> tree, N node, Step step) {
+      return step.viewClass == null || step.viewClass.isAssignableFrom(tree.classOf(node));
+    }
+
+    private static <N> boolean matchesAttributes(Tree<N> tree, N node, Step step) {
+      for (Predicate predicate : step.predicates) {
+        final String attribute = predicate.attribute;
+
+        if (attribute != null && !predicate.value.equals(tree.attributeOf(node, attribute))) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+
+    // Applies the predicates in order to the nodes of `axis` and returns true if `node` is
+    // left. Positional predicates pick one node from what the predicates before them left.
+    private static <N> boolean matchesPositions(Tree<N> tree, N node, Step step, List<N> axis) {
+      List<N> current = new ArrayList<>();
+
+      for (N candidate : axis) {
+        if (matchesClass(tree, candidate, step)) {
+          current.add(candidate);
+        }
+      }
+
+      for (Predicate predicate : step.predicates) {
+        if (predicate.attribute == null) {
+          if (predicate.position > current.size()) {
+            return false;
+          }
+
+          current = Collections.singletonList(current.get(predicate.position - 1));
+        } else {
+          final List<N> next = new ArrayList<>();
+
+          for (N candidate : current) {
+            if (predicate.value.equals(tree.attributeOf(candidate, predicate.attribute))) {
+              next.add(candidate);
+            }
+          }
+
+          current = next;
+        }
+      }
+
+      return current.contains(node);
+    }
+
+    private static <N> List<N> reversed(List<N> list) {
+      final List<N> copy = new ArrayList<>(list);
+      Collections.reverse(copy);
+      return copy;
+    }
+
+    Func<View, Boolean> viewTester() {
+      final Tree<View> tree = new Tree<View>() {
+        @Override
+        public View parentOf(View view) {
+          return view.getParent() instanceof View ? (View) view.getParent() : null;
+        }
+
+        @Override
+        public List<View> siblingsOf(View view) {
+          if (!(view.getParent() instanceof ViewGroup)) {
+            return Collections.singletonList(view);
+          }
+
+          final ViewGroup parent = (ViewGroup) view.getParent();
+          final List<View> siblings = new ArrayList<>(parent.getChildCount());
+
+          for (int i = 0; i < parent.getChildCount(); ++i) {
+            siblings.add(parent.getChildAt(i));
+          }
+
+          return siblings;
+        }
+
+        @Override
+        public Class<?> classOf(View view) {
+          return view.getClass();
+        }
+
+        @Override
+        public String attributeOf(View view, String attribute) {
+          switch (attribute) {
+            case "text":
+              return view instanceof TextView ? ((TextView) view).getText().toString() : null;
+            case "enabled":
+              return String.valueOf(view.isEnabled());
+            default:
+              return String.valueOf(view.isSelected());
+          }
+        }
+      };
+
+      return new Func<View, Boolean>() {
+        @Override
+        public Boolean run(View view) {
+          return matches(tree, view);
+        }
+      };
+    }
+
+    HierarchySnapshot.NodeTester nodeTester() {
+      return new HierarchySnapshot.NodeTester() {
+        @Override
+        public boolean matches(final HierarchySnapshot snapshot, int node) {
+          return XPath.this.matches(new Tree<Integer>() {
+            @Override
+            public Integer parentOf(Integer node) {
+              return snapshot.parent[node] < 0 ? null : snapshot.parent[node];
+            }
+
+            @Override
+            public List<Integer> siblingsOf(Integer node) {
+              final int parent = snapshot.parent[node];
+              final int end = parent < 0 ? snapshot.size : snapshot.end[parent];
+              final List<Integer> siblings = new ArrayList<>();
+
+              for (int i = parent + 1; i < end; i = snapshot.end[i]) {
+                siblings.add(i);
+              }
+
+              return siblings;
+            }
+
+            @Override
+            public Class<?> classOf(Integer node) {
+              return snapshot.classOf(node);
+            }
+
+            @Override
+            public String attributeOf(Integer node, String attribute) {
+              switch (attribute) {
+                case "text":
+                  return (snapshot.flags[node] & HierarchySnapshot.FLAG_TEXT_VIEW) != 0
+                    ? snapshot.textOf(node)
+                    : null;
+                case "enabled":
+                  return String.valueOf((snapshot.flags[node] & HierarchySnapshot.FLAG_ENABLED) != 0);
+                default:
+                  return String.valueOf((snapshot.flags[node] & HierarchySnapshot.FLAG_SELECTED) != 0);
+              }
+            }
+          }, node);
+        }
+      };
+    }
+
+    @Override
+    public String toString() {
+      return source;
+    }
+  }
+
+
+
+
+  // A compiled element locator. Compiled locators are cached by strategy and value so that
+  // repeated finds with the same locator don't need to parse it or look up classes again.
+  // The `xpath` strategy supports the subset of XPath described in `XPath`.
+  static class Locator {
+    private static final int CACHE_SIZE = 256;
+
+    final String strategy;
+    final String value;
+    private final Func<View, Boolean> tester;
+    private final HierarchySnapshot.NodeTester nodeTester;
+
+    private Locator(String strategy, String value, Func<View, Boolean> tester, HierarchySnapshot.NodeTester nodeTester) {
+      this.strategy = strategy;
+      this.value = value;
+      this.tester = tester;
+      this.nodeTester = nodeTester;
+    }
+
+    // Locators are compiled both in the main thread and in the server threads.
+    static Locator compile(TestContext ctx, String strategy, String value) {
+      final String key = strategy + '\n' + value;
+
+      synchronized (ctx.locators) {
+        Locator locator = ctx.locators.get(key);
+
+        if (locator == null) {
+          if ("xpath".equals(strategy)) {
+            final XPath xpath = XPath.parse(value);
+            locator = new Locator(strategy, value, xpath.viewTester(), xpath.nodeTester());
+          } else if ("class name".equals(strategy)) {
+            locator = new Locator(strategy, value, createClassNameTester(value), createClassNameNodeTester(value));
+          } else {
+            final int id = resolveId(ctx.context, value);
+            locator = new Locator(strategy, value, createIdTester(id), createIdNodeTester(id));
+          }
+
+          ctx.locators.put(key, locator);
+        }
+
+        return locator;
+      }
+    }
+
+    // The cache is never serialized.
+    @SuppressWarnings("serial")
+    static Map<String, Locator> newCache() {
+      return new LinkedHashMap<String, Locator>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Locator> eldest) {
+          return size() > CACHE_SIZE;
+        }
+      };
+    }
+
+    boolean matches(View view) {
+      return tester.run(view);
+    }
+
+    boolean matches(HierarchySnapshot snapshot, int node) {
+      return nodeTester.matches(snapshot, node);
+    }
+
+    Func<View, Boolean> visibleTester(final View scopeView, final Rect windowRect) {
+      return new Func<View, Boolean>() {
+        @Override
+        public Boolean run(View view) {
+          return view != scopeView && matches(view) && ViewUtils.isVisible(view, windowRect);
+        }
+      };
+    }
+
+    // Returns the visible matches in document order from the descendants of `scopeView` or,
+    // if it's null, from all windows.
+    List<View> findVisible(TestContext ctx, View scopeView) {
+      if (scopeView != null) {
+        return ctx.viewFinder.findViews(scopeView, visibleTester(scopeView, ViewUtils.getWindowRect(scopeView)), new ArrayList<View>());
+      }
+
+      final Rect windowRect = ViewUtils.getWindowRect(ctx.viewFinder.getRootView());
+      return ctx.viewFinder.findViewsInWindows(visibleTester(null, windowRect));
+    }
+
+    static Func<View, Boolean> createXPathTester(String xpath) {
+      return XPath.parse(xpath).viewTester();
+    }
+
+    static Func<View, Boolean> createClassNameTester(String className) {
+      try {
+        final Class<?> viewClass = Class.forName(className);
+
+        return new Func<View, Boolean>() {
+          @Override
+          public Boolean run(View view) {
+            return viewClass.isAssignableFrom(view.getClass());
+          }
+        };
+      } catch (Throwable error) {
+        throw new RuntimeException(error);
+      }
+    }
+
+    static Func<View, Boolean> createIdTester(Context context, String packageAndId) {
+      return createIdTester(resolveId(context, packageAndId));
+    }
+
+    static Func<View, Boolean> createIdTester(final int id) {
+      return new Func<View, Boolean>() {
+        @Override
+        public Boolean run(View view) {
+          return view.getId() == id;
+        }
+      };
+    }
+
+    static int resolveId(Context context, String packageAndId) {
       final String[] parts = packageAndId.split(":");
       final String defPackage = parts[0];
       final String idStr = parts[1].split("/")[1];
-      final int id = ctx.context.getResources().getIdentifier(idStr, "id", defPackage);
 
-      return new Func<View, Boolean>() {
-        @Override
-        public Boolean run(View view) {
-          return view.getId() == id;
+      return context.getResources().getIdentifier(idStr, "id", defPackage);
+    }
+
+    static HierarchySnapshot.NodeTester createXPathNodeTester(String xpath) {
+      return XPath.parse(xpath).nodeTester();
+    }
+
+    static HierarchySnapshot.NodeTester createClassNameNodeTester(String className) {
+      try {
+        final Class<?> viewClass = Class.forName(className);
+
+        return new HierarchySnapshot.NodeTester() {
+          @Override
+          public boolean matches(HierarchySnapshot snapshot, int node) {
+            return viewClass.isAssignableFrom(snapshot.classOf(node));
+          }
+        };
+      } catch (Throwable error) {
+        throw new RuntimeException(error);
+      }
+    }
+
+    static HierarchySnapshot.NodeTester createIdNodeTester(final int id) {
+      return new HierarchySnapshot.NodeTester() {
+        @Override
+        public boolean matches(HierarchySnapshot snapshot, int node) {
+          return snapshot.ids[node] == id;
+        }
+      };
+    }
+  }
+
+
+
+
+  // An immutable copy of one or more view hierarchies in structure-of-arrays form. The main
+  // thread only walks the views once and copies the few properties the locators need into
+  // flat arrays. The nodes are stored in pre-order so the subtree of node `i` is the range
+  // `[i, end[i])`. Strings and classes are interned into per-snapshot tables.
+  //
+  // Capturing must be done in the main thread. Everything else is safe to do from any thread
+  // as long as the views in `views` are only used as identities.
+  static class HierarchySnapshot {
+    static final int FLAG_SHOWN = 1;
+    static final int FLAG_VISIBLE = 1 << 1;
+    static final int FLAG_TEXT_VIEW = 1 << 2;
+    static final int FLAG_ENABLED = 1 << 3;
+    static final int FLAG_SELECTED = 1 << 4;
+
+    // Snapshots smaller than this are evaluated in the calling thread.
+    private static final int PARALLEL_MIN_NODES = 4096;
+
+    private static ExecutorService workers;
+    private static int workerCount;
+
+    final int size;
+    final View[] views;
+    final int[] parent;
+    final int[] end;
+    final int[] depth;
+    final int[] bounds;
+    final int[] flags;
+    final int[] ids;
+    final int[] classIndex;
+    final int[] textIndex;
+    final Class<?>[] classes;
+    final String[] strings;
+
+    interface NodeTester {
+      boolean matches(HierarchySnapshot snapshot, int node);
+    }
+
+    private HierarchySnapshot(int size, int classCount, int stringCount, Builder builder) {
+      this.size = size;
+      this.views = Arrays.copyOf(builder.views, size);
+      this.parent = Arrays.copyOf(builder.parent, size);
+      this.end = Arrays.copyOf(builder.end, size);
+      this.depth = Arrays.copyOf(builder.depth, size);
+      this.bounds = Arrays.copyOf(builder.bounds, size * 4);
+      this.flags = Arrays.copyOf(builder.flags, size);
+      this.ids = Arrays.copyOf(builder.ids, size);
+      this.classIndex = Arrays.copyOf(builder.classIndex, size);
+      this.textIndex = Arrays.copyOf(builder.textIndex, size);
+      this.classes = builder.classes.keySet().toArray(new Class<?>[classCount]);
+      this.strings = builder.strings.keySet().toArray(new String[stringCount]);
+    }
+
+    static HierarchySnapshot capture(List<View> rootViews, Rect windowRect) {
+      final Builder builder = new Builder();
+
+      for (View rootView : rootViews) {
+        builder.add(rootView, -1, 0, ViewUtils.isShown(rootView), windowRect);
+      }
+
+      return new HierarchySnapshot(builder.size, builder.classes.size(), builder.strings.size(), builder);
+    }
+
+    Class<?> classOf(int node) {
+      return classes[classIndex[node]];
+    }
+
+    String textOf(int node) {
+      return textIndex[node] < 0 ? null : strings[textIndex[node]];
+    }
+
+    // Returns the visible nodes in `[from, size)` that match the locator in document order.
+    int[] findVisible(final Locator locator, final int from) throws Exception {
+      if (size - from < PARALLEL_MIN_NODES) {
+        return findVisible(locator, from, size);
+      }
+
+      // Each node is tested independently against the immutable snapshot so the flat node
+      // arrays can be split into equal index ranges regardless of subtree boundaries.
+      final ExecutorService workers = getWorkers();
+      final int chunks = workerCount;
+      final int chunkSize = (size - from + chunks - 1) / chunks;
+      final List<Future<int[]>> futures = new ArrayList<>(chunks);
+
+      for (int i = 0; i < chunks; ++i) {
+        final int chunkFrom = from + i * chunkSize;
+        final int chunkTo = Math.min(size, chunkFrom + chunkSize);
+
+        futures.add(workers.submit(new Callable<int[]>() {
+          @Override
+          public int[] call() {
+            return findVisible(locator, chunkFrom, chunkTo);
+          }
+        }));
+      }
+
+      final int[][] results = new int[chunks][];
+      int count = 0;
+
+      for (int i = 0; i < chunks; ++i) {
+        try {
+          results[i] = futures.get(i).get();
+        } catch (ExecutionException error) {
+          throw new RuntimeException(error.getCause());
+        }
+
+        count += results[i].length;
+      }
+
+      final int[] matches = new int[count];
+      int offset = 0;
+
+      for (int[] result : results) {
+        System.arraycopy(result, 0, matches, offset, result.length);
+        offset += result.length;
+      }
+
+      return matches;
+    }
+
+    int[] findVisible(Locator locator, int from, int to) {
+      int[] matches = new int[16];
+      int count = 0;
+
+      for (int node = from; node < to; ++node) {
+        if ((flags[node] & FLAG_VISIBLE) != 0 && locator.matches(this, node)) {
+          if (count == matches.length) {
+            matches = Arrays.copyOf(matches, count * 2);
+          }
+
+          matches[count++] = node;
+        }
+      }
+
+      return Arrays.copyOf(matches, count);
+    }
+
+    static synchronized ExecutorService getWorkers() {
+      if (workers == null) {
+        workerCount = Math.max(2, Runtime.getRuntime().availableProcessors());
+        workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+          private int count = 0;
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "FasTest snapshot " + (++count));
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+
+      return workers;
+    }
+
+    private static class Builder {
+      int size = 0;
+      View[] views = new View[256];
+      int[] parent = new int[256];
+      int[] end = new int[256];
+      int[] depth = new int[256];
+      int[] bounds = new int[256 * 4];
+      int[] flags = new int[256];
+      int[] ids = new int[256];
+      int[] classIndex = new int[256];
+      int[] textIndex = new int[256];
+
+      // Insertion ordered so that the key sets can be turned into the lookup tables.
+      final Map<Class<?>, Integer> classes = new LinkedHashMap<>();
+      final Map<String, Integer> strings = new LinkedHashMap<>();
+
+      private final int[] location = new int[2];
+
+      void add(View view, int parentNode, int nodeDepth, boolean shown, Rect windowRect) {
+        final int node = size++;
+
+        if (node == views.length) {
+          grow();
+        }
+
+        view.getLocationInWindow(location);
+
+        final int left = location[0];
+        final int top = location[1];
+        final int right = left + view.getWidth();
+        final int bottom = top + view.getHeight();
+
+        int nodeFlags = 0;
+
+        if (shown) {
+          nodeFlags |= FLAG_SHOWN;
+
+          if (windowRect.intersects(left, top, right, bottom)) {
+            nodeFlags |= FLAG_VISIBLE;
+          }
+        }
+
+        if (view.isEnabled()) {
+          nodeFlags |= FLAG_ENABLED;
+        }
+
+        if (view.isSelected()) {
+          nodeFlags |= FLAG_SELECTED;
+        }
+
+        textIndex[node] = -1;
+
+        if (view instanceof TextView) {
+          final CharSequence text = ((TextView) view).getText();
+          nodeFlags |= FLAG_TEXT_VIEW;
+
+          if (text != null) {
+            textIndex[node] = intern(strings, text.toString());
+          }
+        }
+
+        views[node] = view;
+        parent[node] = parentNode;
+        depth[node] = nodeDepth;
+        bounds[node * 4] = left;
+        bounds[node * 4 + 1] = top;
+        bounds[node * 4 + 2] = right;
+        bounds[node * 4 + 3] = bottom;
+        flags[node] = nodeFlags;
+        ids[node] = view.getId();
+        classIndex[node] = intern(classes, view.getClass());
+
+        if (view instanceof ViewGroup) {
+          final ViewGroup viewGroup = (ViewGroup) view;
+
+          for (int i = 0; i < viewGroup.getChildCount(); ++i) {
+            final View child = viewGroup.getChildAt(i);
+            add(child, node, nodeDepth + 1, shown && child.getVisibility() == View.VISIBLE, windowRect);
+          }
+        }
+
+        end[node] = size;
+      }
+
+      void grow() {
+        final int capacity = views.length * 2;
+
+        views = Arrays.copyOf(views, capacity);
+        parent = Arrays.copyOf(parent, capacity);
+        end = Arrays.copyOf(end, capacity);
+        depth = Arrays.copyOf(depth, capacity);
+        bounds = Arrays.copyOf(bounds, capacity * 4);
+        flags = Arrays.copyOf(flags, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        classIndex = Arrays.copyOf(classIndex, capacity);
+        textIndex = Arrays.copyOf(textIndex, capacity);
+      }
+
+      static <T> int intern(Map<T, Integer> table, T value) {
+        Integer index = table.get(value);
+
+        if (index == null) {
+          index = table.size();
+          table.put(value, index);
+        }
+
+        return index;
+      }
+    }
+  }
+
+
+
+
+  // Tracks the view hierarchy for clients that mirror it. Every node gets a stable id and the
+  // generation at which it last changed. A client passes the generation of its copy and gets
+  // back only the nodes added or changed after it and the ids of the nodes removed after it.
+  // The hierarchy isn't traversed at all while the property cache generation and the set of
+  // windows stay the same, that is, when nothing has been laid out or drawn and no command has
+  // run since the previous capture.
+  static class HierarchyTracker {
+    static final String[] FIELDS = {
+      "id", "parent", "index", "class", "resourceId", "x", "y", "width", "height", "flags", "text"
+    };
+
+    private static final int MAX_REMOVED = 4096;
+
+    // Only accessed in the main thread.
+    private long captureCount = 0;
+    private long capturedAt = -1;
+    private List<View> capturedRoots = Collections.emptyList();
+
+    private final WeakHashMap<View, Integer> nodeIds = new WeakHashMap<>();
+    private final Map<Integer, Node> nodes = new HashMap<>();
+    private final ArrayDeque<long[]> removed = new ArrayDeque<>();
+    private int[] order = new int[0];
+    private int nextNodeId = 1;
+    private long generation = 0;
+    private long appliedCapture = 0;
+
+    // Removals at or before this generation have been dropped from `removed`.
+    private long removedFloor = 0;
+
+    private static class Node {
+      int parent;
+      int index;
+      int resourceId;
+      int left;
+      int top;
+      int right;
+      int bottom;
+      int flags;
+      Class<?> viewClass;
+      String text;
+      long version;
+      long seenAt;
+
+      boolean update(HierarchySnapshot snapshot, int node, int parent, int index) {
+        final Class<?> viewClass = snapshot.classOf(node);
+        final String text = snapshot.textOf(node);
+        final int[] bounds = snapshot.bounds;
+
+        final boolean changed = this.parent != parent
+          || this.index != index
+          || this.resourceId != snapshot.ids[node]
+          || this.left != bounds[node * 4]
+          || this.top != bounds[node * 4 + 1]
+          || this.right != bounds[node * 4 + 2]
+          || this.bottom != bounds[node * 4 + 3]
+          || this.flags != snapshot.flags[node]
+          || this.viewClass != viewClass
+          || (this.text == null ? text != null : !this.text.equals(text));
+
+        this.parent = parent;
+        this.index = index;
+        this.resourceId = snapshot.ids[node];
+        this.left = bounds[node * 4];
+        this.top = bounds[node * 4 + 1];
+        this.right = bounds[node * 4 + 2];
+        this.bottom = bounds[node * 4 + 3];
+        this.flags = snapshot.flags[node];
+        this.viewClass = viewClass;
+        this.text = text;
+
+        return changed;
+      }
+    }
+
+    static class Capture {
+      final long sequence;
+      final HierarchySnapshot snapshot;
+
+      Capture(long sequence, HierarchySnapshot snapshot) {
+        this.sequence = sequence;
+        this.snapshot = snapshot;
+      }
+    }
+
+    // Must be called in the main thread. Returns null if nothing can have changed since the
+    // previous capture.
+    Capture capture(TestContext ctx) {
+      final List<View> rootViews = ctx.viewFinder.getVisibleRootViews();
+
+      for (View rootView : rootViews) {
+        ctx.propertyCache.observe(rootView);
+      }
+
+      final long layoutGeneration = ctx.propertyCache.generation();
+
+      if (layoutGeneration == capturedAt && rootViews.equals(capturedRoots)) {
+        return null;
+      }
+
+      capturedAt = layoutGeneration;
+      capturedRoots = rootViews;
+
+      final Rect windowRect = ViewUtils.getWindowRect(ctx.viewFinder.getRootView());
+      return new Capture(++captureCount, HierarchySnapshot.capture(rootViews, windowRect));
+    }
+
+    // Compares the captured hierarchy to the previous one and advances the generation if
+    // anything was added, changed or removed.
+    synchronized void update(Capture capture) {
+      // Ignores captures that are older than the one already applied.
+      if (capture.sequence <= appliedCapture) {
+        return;
+      }
+
+      final HierarchySnapshot snapshot = capture.snapshot;
+      final long next = generation + 1;
+      final int[] nodeIdOf = new int[snapshot.size];
+      final int[] childCount = new int[snapshot.size];
+      int rootCount = 0;
+      boolean changed = false;
+
+      appliedCapture = capture.sequence;
+      order = new int[snapshot.size];
+
+      for (int i = 0; i < snapshot.size; ++i) {
+        final View view = snapshot.views[i];
+        Integer nodeId = nodeIds.get(view);
+
+        if (nodeId == null) {
+          nodeId = nextNodeId++;
+          nodeIds.put(view, nodeId);
+        }
+
+        final int parent = snapshot.parent[i];
+        final int parentId = parent < 0 ? 0 : nodeIdOf[parent];
+        final int index = parent < 0 ? rootCount++ : childCount[parent]++;
+        Node node = nodes.get(nodeId);
+
+        if (node == null) {
+          node = new Node();
+          node.update(snapshot, i, parentId, index);
+          node.version = next;
+          nodes.put(nodeId, node);
+          changed = true;
+        } else if (node.update(snapshot, i, parentId, index)) {
+          node.version = next;
+          changed = true;
+        }
+
+        node.seenAt = capture.sequence;
+        nodeIdOf[i] = nodeId;
+        order[i] = nodeId;
+      }
+
+      for (Iterator<Map.Entry<Integer, Node>> it = nodes.entrySet().iterator(); it.hasNext(); ) {
+        final Map.Entry<Integer, Node> entry = it.next();
+
+        if (entry.getValue().seenAt != capture.sequence) {
+          removed.addLast(new long[] { entry.getKey(), next });
+          it.remove();
+          changed = true;
+        }
+      }
+
+      while (removed.size() > MAX_REMOVED) {
+        removedFloor = removed.removeFirst()[1];
+      }
+
+      if (changed) {
+        generation = next;
+      }
+    }
+
+    // The nodes are encoded as a flat array with `FIELDS.length` values per node, in document
+    // order so that parents precede their children. Classes and texts are indexes to tables
+    // sent with the diff. A parent of 0 means a window root and a text of -1 means no text. If
+    // the client's generation is too old to be diffed, every node is sent and `full` is true.
+    synchronized JsonObject diff(long since) {
+      final boolean full = since <= 0 || since > generation || since < removedFloor;
+      final Map<Class<?>, Integer> classes = new LinkedHashMap<>();
+      final Map<String, Integer> strings = new LinkedHashMap<>();
+      final JsonObject fields = JsonObject.newArray();
+      final JsonObject values = JsonObject.newArray();
+      final JsonObject removedIds = JsonObject.newArray();
+      final JsonObject classNames = JsonObject.newArray();
+      final JsonObject texts = JsonObject.newArray();
+
+      for (int nodeId : order) {
+        final Node node = nodes.get(nodeId);
+
+        if (!full && node.version <= since) {
+          continue;
+        }
+
+        values.add(nodeId);
+        values.add(node.parent);
+        values.add(node.index);
+        values.add(HierarchySnapshot.Builder.intern(classes, node.viewClass));
+        values.add(node.resourceId);
+        values.add(node.left);
+        values.add(node.top);
+        values.add(node.right - node.left);
+        values.add(node.bottom - node.top);
+        values.add(node.flags);
+        values.add(node.text != null ? HierarchySnapshot.Builder.intern(strings, node.text) : -1);
+      }
+
+      if (!full) {
+        for (long[] entry : removed) {
+          if (entry[1] > since) {
+            removedIds.add(entry[0]);
+          }
+        }
+      }
+
+      for (String field : FIELDS) {
+        fields.add(field);
+      }
+
+      for (Class<?> viewClass : classes.keySet()) {
+        classNames.add(viewClass.getName());
+      }
+
+      for (String text : strings.keySet()) {
+        texts.add(text);
+      }
+
+      final JsonObject json = JsonObject.newObject();
+      json.put("generation", generation);
+      json.put("full", full);
+      json.put("fields", fields);
+      json.put("classes", classNames);
+      json.put("strings", texts);
+      json.put("nodes", values);
+      json.put("removed", removedIds);
+      return json;
+    }
+  }
+
+
+
+
+  // `POST .../fastest/hierarchy` with `{"since": 12}` returns the changes to the view hierarchy
+  // after the given generation. See `HierarchyTracker` for the encoding. A missing or zero
+  // `since` returns the whole hierarchy.
+  private static class HierarchyDiffRequestHandler extends ServerThreadRequestHandler {
+
+    HierarchyDiffRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("fastest/hierarchy");
+    }
+
+    @Override
+    JsonObject handleInServerThread(NanoHTTPD.IHTTPSession req, JsonObject body) throws Throwable {
+      final long since = body.has("since") ? body.getLong("since") : 0L;
+      final JsonObject result = JsonObject.newObject();
+      final Func<Void, HierarchyTracker.Capture> captureTask = new Func<Void, HierarchyTracker.Capture>() {
+        @Override
+        public HierarchyTracker.Capture run(Void value) {
+          return ctx.hierarchy.capture(ctx);
+        }
+      };
+
+      // A null capture means that nothing changed since the previous one, which is only true
+      // once that capture has been applied. Concurrent requests are therefore serialized from
+      // capture to diff. The main thread never locks the tracker so this can't deadlock.
+      synchronized (ctx.hierarchy) {
+        final HierarchyTracker.Capture capture = AsyncUtils.callInMainThread(ctx, "capture hierarchy", captureTask);
+
+        // The snapshot is diffed in the server thread to keep the main thread free.
+        if (capture != null) {
+          ctx.hierarchy.update(capture);
+        }
+
+        result.put("value", ctx.hierarchy.diff(since));
+      }
+
+      return result;
+    }
+  }
+
+
+
+
+  private static class ClickElementRequestHandler extends ElementRequestHandler {
+
+    ClickElementRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("click");
+    }
+
+    @Override
+    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, final Callback<JsonObject> callback) {
+      final View view = findElementView(req);
+      final Rect rect = ViewUtils.getViewRectInWindow(view);
+      final long downTime = SystemClock.uptimeMillis();
+      final InputLatency.Measurement latency = ctx.inputLatency.begin("click", downTime);
+
+      ViewUtils.dispatchTouchEvent(
+        view,
+        MotionEvent.ACTION_DOWN,
+        downTime,
+        downTime,
+        rect.centerX(),
+        rect.centerY()
+      );
+
+      ctx.scheduler.postDelayed(ctx.timeline.wrap("click up", new Runnable() {
+        @Override
+        public void run() {
+          final Rect rect = ViewUtils.getViewRectInWindow(view);
+          final long upTime = SystemClock.uptimeMillis();
+
+          ctx.inputLatency.lastInput(latency, upTime);
+
+          ViewUtils.dispatchTouchEvent(
+            view,
+            MotionEvent.ACTION_UP,
+            downTime,
+            upTime,
+            rect.centerX(),
+            rect.centerY()
+          );
+
+          callback.done(null, JsonObject.newObject());
+        }
+      }), 50);
+    }
+  }
+
+
+
+
+  private static class IsElementDisplayedRequestHandler extends CachedElementRequestHandler {
+
+    IsElementDisplayedRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.GET && req.getUri().endsWith("displayed");
+    }
+
+    @Override
+    JsonObject readProperty(View view) {
+      JsonObject result = JsonObject.newObject();
+      result.put("value", ViewUtils.isVisible(view));
+      return result;
+    }
+  }
+
+
+
+
+  private static class IsElementEnabledRequestHandler extends CachedElementRequestHandler {
+
+    IsElementEnabledRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.GET && req.getUri().endsWith("enabled");
+    }
+
+    @Override
+    JsonObject readProperty(View view) {
+      JsonObject result = JsonObject.newObject();
+      result.put("value", view.isEnabled());
+      return result;
+    }
+  }
+
+
+
+
+  private static class IsElementSelectedRequestHandler extends CachedElementRequestHandler {
+
+    IsElementSelectedRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.GET && req.getUri().endsWith("selected");
+    }
+
+    @Override
+    JsonObject readProperty(View view) {
+      JsonObject result = JsonObject.newObject();
+
+      if (view instanceof CompoundButton) {
+        CompoundButton button = (CompoundButton) view;
+        result.put("value", button.isChecked());
+      } else {
+        result.put("value", view.isSelected());
+      }
+
+      return result;
+    }
+  }
+
+
+
+
+  private static class SetElementValueRequestHandler extends ElementRequestHandler {
+
+    SetElementValueRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("value");
+    }
+
+    // Typing key by key waits `keyDelay` between the batches.
+    @Override
+    long deadline(JsonObject body) {
+      final long keyDelay = body.has("keyDelay") ? body.getLong("keyDelay") : 0L;
+      final JsonObject value = body.getJsonArray("value");
+      long length = 0;
+
+      for (int i = 0; i < value.size(); ++i) {
+        length += value.getString(i).length();
+      }
+
+      return super.deadline(body) + keyDelay * length;
+    }
+
+    @Override
+    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, final Callback<JsonObject> callback) {
+      final View view = findElementView(req);
+      final JsonObject value = body.getJsonArray("value");
+      final StringBuilder text = new StringBuilder();
+
+      for (int i = 0; i < value.size(); ++i) {
+        text.append(value.getString(i));
+      }
+
+      final String mode = body.has("mode") ? body.getString("mode") : TextInput.MODE_BULK;
+      final boolean append = body.has("append") && body.getBoolean("append");
+
+      if (TextInput.MODE_KEYS.equals(mode)) {
+        final long keyDelay = body.has("keyDelay") ? body.getLong("keyDelay") : 0L;
+        final int batchSize = body.has("batchSize") ? body.getInt("batchSize") : TextInput.DEFAULT_BATCH_SIZE;
+
+        TextInput.typeKeys(ctx, view, text.toString(), append, keyDelay, batchSize, new Callback<Void>() {
+          @Override
+          public void done(Throwable error, Void result) {
+            callback.done(error, error == null ? JsonObject.newObject() : null);
+          }
+        });
+      } else if (TextInput.MODE_BULK.equals(mode)) {
+        TextInput.commitText(view, text.toString(), append);
+        callback.done(null, JsonObject.newObject());
+      } else {
+        throw new RuntimeException("unsupported text input mode " + mode);
+      }
+    }
+  }
+
+
+
+
+  private static class GetElementTextRequestHandler extends CachedElementRequestHandler {
+
+    GetElementTextRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.GET && req.getUri().endsWith("text");
+    }
+
+    @Override
+    JsonObject readProperty(View view) {
+      TextView textView = (TextView) view;
+      JsonObject result = JsonObject.newObject();
+
+      if (textView.getText() != null) {
+        result.put("value", textView.getText().toString());
+      } else {
+        result.put("value", (String) null);
+      }
+
+      return result;
+    }
+  }
+
+
+
+
+  private static class GetElementRectRequestHandler extends CachedElementRequestHandler {
+
+    GetElementRectRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.GET && req.getUri().endsWith("rect");
+    }
+
+    @Override
+    JsonObject readProperty(View view) {
+      Rect rect = ViewUtils.getViewRectInWindow(view);
+
+      JsonObject result = JsonObject.newObject();
+      JsonObject rectJson = JsonObject.newObject();
+
+      rectJson.put("x", rect.left);
+      rectJson.put("y", rect.top);
+      rectJson.put("width", rect.width());
+      rectJson.put("height", rect.height());
+
+      result.put("value", rectJson);
+      return result;
+    }
+  }
+
+
+
+
+  private static class FlickRequestHandler extends ElementRequestHandler {
+    private final static int STEPS = 50;
+
+    FlickRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("flick");
+    }
+
+    @Override
+    long deadline(JsonObject body) {
+      final double xOffset = body.getDouble("xoffset");
+      final double yOffset = body.getDouble("yoffset");
+      final double distance = Math.sqrt(xOffset * xOffset + yOffset * yOffset);
+
+      return super.deadline(body) + Math.round(distance / body.getDouble("speed") * 1000);
+    }
+
+    @Override
+    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, final Callback<JsonObject> callback) {
+      final View view = findElementView(body.getString("element"));
+      final Rect rect = ViewUtils.getViewRectInWindow(view);
+
+      final double xOffset = body.getDouble("xoffset");
+      final double yOffset = body.getDouble("yoffset");
+      final double speed = body.getDouble("speed");
+
+      final double distance = Math.sqrt(xOffset * xOffset + yOffset * yOffset);
+      final double durationSeconds = distance / speed;
+      final double intervalSeconds = durationSeconds / STEPS;
+      final long intervalMillis = Math.round(intervalSeconds * 1000);
+
+      AsyncUtils.poll(ctx, "flick step", intervalMillis, Integer.MAX_VALUE, new Func<Void, Boolean>() {
+        private int step = -1;
+        private long downTime;
+        private InputLatency.Measurement latency;
+
+        @Override
+        public Boolean run(Void value) {
+          final long time = SystemClock.uptimeMillis();
+          ++step;
+
+          if (step == 0) {
+            downTime = time;
+            latency = ctx.inputLatency.begin("flick", downTime);
+
+            ViewUtils.dispatchTouchEvent(
+              view,
+              MotionEvent.ACTION_DOWN,
+              downTime,
+              time,
+              rect.centerX(),
+              rect.centerY()
+            );
+
+            return null;
+          } else if (step == STEPS) {
+            ctx.inputLatency.lastInput(latency, time);
+
+            ViewUtils.dispatchTouchEvent(
+              view,
+              MotionEvent.ACTION_UP,
+              downTime,
+              time,
+              (float) (rect.centerX() + xOffset),
+              (float) (rect.centerY() + yOffset)
+            );
+
+            return true;
+          } else {
+            final double fraction = step / (double) STEPS;
+
+            ViewUtils.dispatchTouchEvent(
+              view,
+              MotionEvent.ACTION_MOVE,
+              downTime,
+              time,
+              (float) (rect.centerX() + xOffset * fraction),
+              (float) (rect.centerY() + yOffset * fraction)
+            );
+
+            return null;
+          }
+        }
+      }, new Callback<Boolean>() {
+        @Override
+        public void done(Throwable error, Boolean result) {
+          if (error != null) {
+            callback.done(error, null);
+          } else {
+            callback.done(null, JsonObject.newObject());
+          }
+        }
+      });
+    }
+  }
+
+
+
+
+  private static class HideKeyboardRequestHandler extends MainThreadRequestHandler {
+
+    HideKeyboardRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("hide_keyboard");
+    }
+
+    @Override
+    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, final Callback<JsonObject> callback) {
+      // The decor view's context isn't the activity from Android 7.0 on.
+      final View rootView = ctx.viewFinder.getRootView();
+      final InputMethodManager imm = (InputMethodManager) ctx.context.getSystemService(Context.INPUT_METHOD_SERVICE);
+
+      // Nothing may have focus, for example after the focused view has been removed. Any
+      // view of the window can be used to close the keyboard.
+      final View focus = rootView.findFocus();
+      final View tokenView = focus != null ? focus : rootView;
+
+      if (!imm.hideSoftInputFromWindow(tokenView.getWindowToken(), 0)) {
+        // The keyboard wasn't shown.
+        callback.done(null, JsonObject.newObject());
+        return;
+      }
+
+      // Wait until the keyboard is closed.
+      ctx.scheduler.postDelayed(ctx.timeline.wrap("hide keyboard wait", new Runnable() {
+        @Override
+        public void run() {
+          callback.done(null, JsonObject.newObject());
+        }
+      }), 300);
+    }
+  }
+
+
+
+
+  private static class StartTraceRequestHandler extends ServerThreadRequestHandler {
+
+    StartTraceRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("trace/start");
+    }
+
+    @Override
+    JsonObject handleInServerThread(NanoHTTPD.IHTTPSession req, JsonObject body) throws Throwable {
+      final File file = body.has("path")
+        ? new File(body.getString("path"))
+        : new File(ctx.context.getFilesDir(), CommandTrace.DEFAULT_FILE_NAME);
+
+      ctx.trace.start(file);
+
+      JsonObject result = JsonObject.newObject();
+      JsonObject value = JsonObject.newObject();
+      value.put("path", file.getAbsolutePath());
+      result.put("value", value);
+      return result;
+    }
+  }
+
+
+
+
+  private static class StopTraceRequestHandler extends ServerThreadRequestHandler {
+
+    StopTraceRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("trace/stop");
+    }
+
+    @Override
+    JsonObject handleInServerThread(NanoHTTPD.IHTTPSession req, JsonObject body) throws Throwable {
+      final File file = ctx.trace.getFile();
+      final int commands = ctx.trace.stop();
+
+      JsonObject result = JsonObject.newObject();
+      JsonObject value = JsonObject.newObject();
+      value.put("path", file != null ? file.getAbsolutePath() : null);
+      value.put("commands", commands);
+      result.put("value", value);
+      return result;
+    }
+  }
+
+
+
+
+  private static class ReplayTraceRequestHandler extends ServerThreadRequestHandler {
+    private final Server server;
+
+    ReplayTraceRequestHandler(TestContext ctx, Server server) {
+      super(ctx);
+      this.server = server;
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("trace/replay");
+    }
+
+    @Override
+    JsonObject handleInServerThread(NanoHTTPD.IHTTPSession req, JsonObject body) throws Throwable {
+      final File file = body.has("path")
+        ? new File(body.getString("path"))
+        : new File(ctx.context.getFilesDir(), CommandTrace.DEFAULT_FILE_NAME);
+
+      // By default the commands are replayed back to back. With `paced` the original
+      // timing between the commands is kept.
+      final boolean paced = body.has("paced") && body.getBoolean("paced");
+      final List<CommandTrace.Record> records = CommandTrace.read(file);
+      final Map<String, String> elementIds = new HashMap<>();
+      final long[] latencies = new long[records.size()];
+      final JsonObject commands = JsonObject.newArray();
+      final long replayStartNanos = System.nanoTime();
+      int errors = 0;
+
+      for (int i = 0; i < records.size(); ++i) {
+        final CommandTrace.Record record = records.get(i);
+
+        if (paced) {
+          final long waitNanos = record.startOffsetNanos - (System.nanoTime() - replayStartNanos);
+
+          if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+          }
+        }
+
+        final String uri = CommandTrace.remapElementIds(record.uri, elementIds);
+        final String recordBody = CommandTrace.remapElementIds(record.body, elementIds);
+        final ReplaySession session = new ReplaySession(server, record.method, uri, recordBody);
+        final JsonObject commandBody = recordBody.isEmpty() ? JsonObject.newObject() : new JsonObject(recordBody);
+        final long startNanos = System.nanoTime();
+        int status = NanoHTTPD.Response.Status.OK.getRequestStatus();
+        int resultSize;
+
+        try {
+          final JsonObject commandResult = server.dispatch(session, commandBody);
+          CommandTrace.mapElementIds(record.elementIds, CommandTrace.elementIdsOf(commandResult), elementIds);
+          resultSize = commandResult.toString().length();
+        } catch (Throwable error) {
+          status = NanoHTTPD.Response.Status.INTERNAL_ERROR.getRequestStatus();
+          resultSize = 0;
+          ++errors;
+        }
+
+        latencies[i] = System.nanoTime() - startNanos;
+
+        JsonObject command = JsonObject.newObject();
+        command.put("method", record.method);
+        command.put("uri", uri);
+        command.put("latencyMs", latencies[i] / 1e6);
+        command.put("recordedLatencyMs", record.durationNanos / 1e6);
+        command.put("status", status);
+        command.put("recordedStatus", record.status);
+        command.put("resultSize", resultSize);
+        command.put("recordedResultSize", record.resultSize);
+        commands.add(command);
+      }
+
+      final long totalNanos = System.nanoTime() - replayStartNanos;
+      Arrays.sort(latencies);
+
+      JsonObject result = JsonObject.newObject();
+      JsonObject value = JsonObject.newObject();
+      value.put("commands", commands);
+      value.put("count", records.size());
+      value.put("errors", errors);
+      value.put("totalMs", totalNanos / 1e6);
+      value.put("latency", Percentiles.distribution(latencies));
+      result.put("value", value);
+      return result;
+    }
+  }
+
+
+
+
+  // `POST .../fastest/benchmark` runs a flow of commands repeatedly on the device, so that
+  // the network and the client don't add to the measured latencies:
+  //
+  //   {"steps": [{"name": "item", "method": "POST", "uri": "/session/s/element", "body": {...}},
+  //              {"method": "POST", "uri": "/session/s/element/{item}/click"}],
+  //    "iterations": 20, "warmup": 3, "stableMs": 100}
+  //
+  // `{item}` in the uri or body of a later step is replaced with the element id returned by
+  // the step named `item`, or the first one if the step found many elements.
+  //
+  // A step is measured from its dispatch until the UI last changed before staying unchanged,
+  // with nothing laid out or drawn, for `stableMs`. The warm-up iterations aren't measured.
+  // An iteration is abandoned at its first failing step.
+  private static class BenchmarkRequestHandler extends ServerThreadRequestHandler {
+    private static final long STABLE_POLL_INTERVAL = 8L;
+    private static final long DEFAULT_STABLE_MS = 100L;
+
+    private final Server server;
+
+    BenchmarkRequestHandler(TestContext ctx, Server server) {
+      super(ctx);
+      this.server = server;
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("fastest/benchmark");
+    }
+
+    @Override
+    JsonObject handleInServerThread(NanoHTTPD.IHTTPSession req, JsonObject body) throws Throwable {
+      final JsonObject steps = body.getJsonArray("steps");
+      final int iterations = body.has("iterations") ? body.getInt("iterations") : 10;
+      final int warmup = body.has("warmup") ? body.getInt("warmup") : 1;
+      final long stableMs = body.has("stableMs") ? body.getLong("stableMs") : DEFAULT_STABLE_MS;
+
+      if (iterations <= 0) {
+        throw new RuntimeException("iterations must be positive, got " + iterations);
+      }
+
+      if (warmup < 0) {
+        throw new RuntimeException("warmup must not be negative, got " + warmup);
+      }
+
+      if (stableMs <= 0) {
+        throw new RuntimeException("stableMs must be positive, got " + stableMs);
+      }
+
+      final long stableNanos = stableMs * 1000000L;
+
+      final int stepCount = steps.size();
+      final long[][] latencies = new long[stepCount][iterations];
+      final long[][] commandLatencies = new long[stepCount][iterations];
+      final long[] totals = new long[iterations];
+      final int[] counts = new int[stepCount];
+      int completed = 0;
+      int errors = 0;
+      int unstable = 0;
+      String lastError = null;
+
+      for (int iteration = -warmup; iteration < iterations; ++iteration) {
+        final Map<String, String> elementIds = new HashMap<>();
+        long total = 0;
+        int step = 0;
+
+        for (; step < stepCount; ++step) {
+          final JsonObject stepJson = steps.getJsonObject(step);
+          final String uri = substitute(stepJson.getString("uri"), elementIds);
+          final String stepBody = stepJson.has("body") ? substitute(stepJson.getJsonObject("body").toString(), elementIds) : "{}";
+          final String method = stepJson.has("method") ? stepJson.getString("method") : "POST";
+          final long startNanos = System.nanoTime();
+          final JsonObject result;
+
+          try {
+            result = server.dispatch(new ReplaySession(server, method, uri, stepBody), new JsonObject(stepBody));
+          } catch (Throwable error) {
+            lastError = uri + ": " + error.getMessage();
+            ++errors;
+            break;
+          }
+
+          final long commandNanos = System.nanoTime() - startNanos;
+          final long changedAt = awaitStable(startNanos + commandNanos, stableNanos);
+
+          if (changedAt < 0) {
+            ++unstable;
+          }
+
+          if (stepJson.has("name")) {
+            elementIds.put(stepJson.getString("name"), elementIdOf(result));
+          }
+
+          if (iteration >= 0) {
+            final long latency = (changedAt < 0 ? System.nanoTime() : changedAt) - startNanos;
+
+            latencies[step][counts[step]] = latency;
+            commandLatencies[step][counts[step]] = commandNanos;
+            ++counts[step];
+            total += latency;
+          }
+        }
+
+        if (iteration >= 0 && step == stepCount) {
+          totals[completed++] = total;
+        }
+      }
+
+      final JsonObject stepResults = JsonObject.newArray();
+
+      for (int step = 0; step < stepCount; ++step) {
+        final JsonObject stepJson = steps.getJsonObject(step);
+        final JsonObject stepResult = JsonObject.newObject();
+
+        stepResult.put("name", stepJson.has("name") ? stepJson.getString("name") : stepJson.getString("uri"));
+        stepResult.put("latency", distribution(latencies[step], counts[step]));
+        stepResult.put("command", distribution(commandLatencies[step], counts[step]));
+        stepResults.add(stepResult);
+      }
+
+      final JsonObject value = JsonObject.newObject();
+      value.put("iterations", iterations);
+      value.put("warmup", warmup);
+      value.put("completed", completed);
+      value.put("errors", errors);
+      value.put("unstable", unstable);
+      value.put("lastError", lastError);
+      value.put("steps", stepResults);
+      value.put("total", distribution(totals, completed));
+
+      final JsonObject result = JsonObject.newObject();
+      result.put("value", value);
+      return result;
+    }
+
+    // Waits until nothing has been laid out or drawn for `stableNanos` and returns the time of
+    // the last change, or -1 if the UI didn't settle within the implicit wait timeout. New
+    // windows, such as the next activity's, are observed on every poll.
+    private long awaitStable(long commandEndNanos, long stableNanos) throws Throwable {
+      while (true) {
+        AsyncUtils.callInMainThread(ctx, "observe windows", new Func<Void, Void>() {
+          @Override
+          public Void run(Void value) {
+            for (View rootView : ctx.viewFinder.getVisibleRootViews()) {
+              ctx.propertyCache.observe(rootView);
+            }
+
+            return null;
+          }
+        });
+
+        final long now = System.nanoTime();
+        final long changedAt = Math.max(commandEndNanos, ctx.propertyCache.changedAtNanos());
+
+        if (now - changedAt >= stableNanos) {
+          return changedAt;
+        }
+
+        if (now - commandEndNanos >= ctx.timeout * 1000000L) {
+          return -1;
+        }
+
+        Thread.sleep(STABLE_POLL_INTERVAL);
+      }
+    }
+
+    static String substitute(String str, Map<String, String> elementIds) {
+      for (Map.Entry<String, String> entry : elementIds.entrySet()) {
+        if (entry.getValue() != null) {
+          str = str.replace("{" + entry.getKey() + "}", entry.getValue());
+        }
+      }
+
+      return str;
+    }
+
+    // Returns the id of the element found by a step. Steps that find many elements give the
+    // id of the first one.
+    static String elementIdOf(JsonObject result) {
+      final List<String> ids = CommandTrace.elementIdsOf(result);
+      return ids.isEmpty() ? null : ids.get(0);
+    }
+
+    static JsonObject distribution(long[] nanos, int count) {
+      final long[] sorted = Arrays.copyOf(nanos, count);
+      Arrays.sort(sorted);
+      return Percentiles.distribution(sorted);
+    }
+  }
+
+
+
+
+  // Records every command the server handles to a compact binary file so that the commands
+  // can later be replayed through the request handlers without an external client.
+  //
+  // Element ids are only valid in the process that created them, so the ids each command
+  // returned are recorded too. When replaying, the ids returned by the replayed commands are
+  // paired with the recorded ones in order and the recorded ids in the uris and bodies of
+  // the later commands are replaced with the new ones.
+  static class CommandTrace {
+    static final String DEFAULT_FILE_NAME = "fastest-trace.bin";
+    private static final int MAGIC = 0x46545243;
+    private static final int VERSION = 2;
+    private static final Pattern ELEMENT_ID_PATTERN = Pattern.compile(
+      "element-[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}"
+    );
+
+    private DataOutputStream out;
+    private File file;
+    private long startNanos;
+    private int count;
+
+    static boolean isTraceCommand(String uri) {
+      return uri.contains("trace/");
+    }
+
+    synchronized void start(File file) throws IOException {
+      stop();
+
+      this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      this.file = file;
+      this.startNanos = System.nanoTime();
+      this.count = 0;
+
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+    }
+
+    synchronized int stop() throws IOException {
+      final int recorded = count;
+
+      if (out != null) {
+        out.close();
+        out = null;
+      }
+
+      count = 0;
+      return recorded;
+    }
+
+    synchronized boolean isRecording() {
+      return out != null;
+    }
+
+    synchronized File getFile() {
+      return file;
+    }
+
+    synchronized void record(String method,
+                             String uri,
+                             String body,
+                             long commandStartNanos,
+                             long durationNanos,
+                             int status,
+                             int resultSize,
+                             List<String> elementIds) {
+      if (out == null) {
+        return;
+      }
+
+      try {
+        final byte[] bodyBytes = body.getBytes("UTF-8");
+
+        out.writeLong(commandStartNanos - startNanos);
+        out.writeUTF(method);
+        out.writeUTF(uri);
+        out.writeInt(bodyBytes.length);
+        out.write(bodyBytes);
+        out.writeLong(durationNanos);
+        out.writeShort(status);
+        out.writeInt(resultSize);
+        out.writeShort(elementIds.size());
+
+        for (String elementId : elementIds) {
+          out.writeUTF(elementId);
+        }
+
+        ++count;
+      } catch (Throwable error) {
+        Log.e(TAG, "could not record command", error);
+      }
+    }
+
+    static List<Record> read(File file) throws IOException {
+      final List<Record> records = new ArrayList<>();
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+          throw new IOException("not a trace file " + file);
+        }
+
+        while (true) {
+          final long startOffsetNanos;
+
+          try {
+            startOffsetNanos = in.readLong();
+          } catch (EOFException end) {
+            break;
+          }
+
+          final String method = in.readUTF();
+          final String uri = in.readUTF();
+          final byte[] bodyBytes = new byte[in.readInt()];
+          in.readFully(bodyBytes);
+
+          final long durationNanos = in.readLong();
+          final int status = in.readShort();
+          final int resultSize = in.readInt();
+          final int elementIdCount = in.readUnsignedShort();
+          final List<String> elementIds = new ArrayList<>(elementIdCount);
+
+          for (int i = 0; i < elementIdCount; ++i) {
+            elementIds.add(in.readUTF());
+          }
+
+          records.add(new Record(
+            startOffsetNanos,
+            method,
+            uri,
+            new String(bodyBytes, "UTF-8"),
+            durationNanos,
+            status,
+            resultSize,
+            elementIds
+          ));
+        }
+      } finally {
+        in.close();
+      }
+
+      return records;
+    }
+
+    // Returns the ids of the elements in a command result in order. Covers single elements,
+    // lists of elements and the element of a wait result.
+    static List<String> elementIdsOf(JsonObject result) {
+      final List<String> ids = new ArrayList<>();
+
+      if (result == null) {
+        return ids;
+      }
+
+      if (result.isArray("value")) {
+        final JsonObject values = result.getJsonArray("value");
+
+        for (int i = 0; i < values.size(); ++i) {
+          if (values.isObject(i)) {
+            addElementId(values.getJsonObject(i), ids);
+          }
+        }
+      } else if (result.isObject("value")) {
+        final JsonObject value = result.getJsonObject("value");
+        addElementId(value, ids);
+
+        if (value.isObject("element")) {
+          addElementId(value.getJsonObject("element"), ids);
+        }
+      }
+
+      return ids;
+    }
+
+    private static void addElementId(JsonObject element, List<String> ids) {
+      if (element.has("ELEMENT")) {
+        ids.add(element.getString("ELEMENT"));
+      }
+    }
+
+    // Pairs the ids a replayed command returned with the ones it returned when it was recorded.
+    static void mapElementIds(List<String> recorded, List<String> replayed, Map<String, String> elementIds) {
+      for (int i = 0; i < recorded.size() && i < replayed.size(); ++i) {
+        elementIds.put(recorded.get(i), replayed.get(i));
+      }
+    }
+
+    // Replaces the recorded element ids in a uri or a body with the ids of the replay.
+    static String remapElementIds(String str, Map<String, String> elementIds) {
+      if (elementIds.isEmpty()) {
+        return str;
+      }
+
+      final Matcher matcher = ELEMENT_ID_PATTERN.matcher(str);
+      final StringBuffer remapped = new StringBuffer(str.length());
+
+      while (matcher.find()) {
+        final String elementId = elementIds.get(matcher.group());
+        matcher.appendReplacement(remapped, Matcher.quoteReplacement(elementId != null ? elementId : matcher.group()));
+      }
+
+      matcher.appendTail(remapped);
+      return remapped.toString();
+    }
+
+    static class Record {
+      final long startOffsetNanos;
+      final String method;
+      final String uri;
+      final String body;
+      final long durationNanos;
+      final int status;
+      final int resultSize;
+      final List<String> elementIds;
+
+      Record(long startOffsetNanos,
+             String method,
+             String uri,
+             String body,
+             long durationNanos,
+             int status,
+             int resultSize,
+             List<String> elementIds) {
+        this.startOffsetNanos = startOffsetNanos;
+        this.method = method;
+        this.uri = uri;
+        this.body = body;
+        this.durationNanos = durationNanos;
+        this.status = status;
+        this.resultSize = resultSize;
+        this.elementIds = elementIds;
+      }
+    }
+  }
+
+
+
+
+  private static class StartTimelineRequestHandler extends ServerThreadRequestHandler {
+
+    StartTimelineRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("timeline/start");
+    }
+
+    @Override
+    JsonObject handleInServerThread(NanoHTTPD.IHTTPSession req, JsonObject body) {
+      ctx.timeline.start(body.has("capacity") ? body.getInt("capacity") : Timeline.DEFAULT_CAPACITY);
+      return JsonObject.newObject();
+    }
+  }
+
+
+
+
+  private static class StopTimelineRequestHandler extends ServerThreadRequestHandler {
+
+    StopTimelineRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("timeline/stop");
+    }
+
+    @Override
+    JsonObject handleInServerThread(NanoHTTPD.IHTTPSession req, JsonObject body) {
+      ctx.timeline.stop();
+      return JsonObject.newObject();
+    }
+  }
+
+
+
+
+  private static class GetTimelineRequestHandler extends ServerThreadRequestHandler {
+
+    GetTimelineRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.GET && req.getUri().endsWith("timeline");
+    }
+
+    @Override
+    JsonObject handleInServerThread(NanoHTTPD.IHTTPSession req, JsonObject body) {
+      // The response is not wrapped in `value` so that it can be saved and opened
+      // as is in chrome://tracing or Perfetto.
+      return ctx.timeline.toChromeTrace();
+    }
+  }
+
+
+
+
+  // Records the main thread tasks posted by FasTest into a ring buffer that can be exported
+  // in the Chrome trace event format. The spans are also emitted as `android.os.Trace`
+  // sections so that they show up in system traces.
+  //
+  // Spans are only written from the main thread so the buffer has a single writer and
+  // needs no locking. Readers copy the entries and drop the ones that were overwritten
+  // while copying. `start` publishes a whole new buffer instead of replacing the arrays
+  // one by one, so a writer or a reader never sees arrays of two different buffers.
+  private static class Timeline {
+    static final int DEFAULT_CAPACITY = 8192;
+    private static final Pattern SESSION_PATTERN = Pattern.compile("/session/([^/]+)");
+
+    private volatile boolean enabled;
+    private volatile int mainThreadId;
+    private volatile Buffer buffer = new Buffer(0);
+
+    // The command being handled by the task that is currently running in the main thread.
+    // Tasks posted while handling a command inherit these.
+    private String currentCommand;
+    private String currentSession;
+
+    static String sessionOf(String uri) {
+      final Matcher matcher = SESSION_PATTERN.matcher(uri);
+      return matcher.find() ? matcher.group(1) : null;
+    }
+
+    synchronized void start(int capacity) {
+      enabled = false;
+
+      // Round up to a power of two so that the slot can be computed with a mask.
+      int size = 1;
+      while (size < capacity) {
+        size <<= 1;
+      }
+
+      buffer = new Buffer(size);
+      enabled = true;
+    }
+
+    void stop() {
+      enabled = false;
+    }
+
+    boolean isEnabled() {
+      return enabled;
+    }
+
+    Runnable wrap(String name, Runnable task) {
+      if (!enabled) {
+        return task;
+      }
+
+      return wrap(name, currentCommand, currentSession, task);
+    }
+
+    Runnable wrap(final String name, final String command, final String session, final Runnable task) {
+      if (!enabled) {
+        return task;
+      }
+
+      return new Runnable() {
+        @Override
+        public void run() {
+          final String previousCommand = currentCommand;
+          final String previousSession = currentSession;
+          final long start = System.nanoTime();
+
+          currentCommand = command;
+          currentSession = session;
+          beginSection(name);
+
+          try {
+            task.run();
+          } finally {
+            endSection();
+            record(name, command, session, start, System.nanoTime() - start);
+            currentCommand = previousCommand;
+            currentSession = previousSession;
+          }
+        }
+      };
+    }
+
+    private void record(String name, String command, String session, long start, long duration) {
+      final Buffer buffer = this.buffer;
+      final int mask = buffer.startNanos.length - 1;
+
+      if (!enabled || mask < 0) {
+        return;
+      }
+
+      final long written = buffer.written;
+      final int slot = (int) (written & mask);
+
+      if (mainThreadId == 0) {
+        mainThreadId = android.os.Process.myTid();
+      }
+
+      buffer.startNanos[slot] = start;
+      buffer.durationNanos[slot] = duration;
+      buffer.names[slot] = name;
+      buffer.commands[slot] = command;
+      buffer.sessions[slot] = session;
+
+      // Publishes the entry to the readers.
+      buffer.written = written + 1;
+    }
+
+    JsonObject toChromeTrace() {
+      final Buffer buffer = this.buffer;
+      final int capacity = buffer.startNanos.length;
+      final long end = buffer.written;
+      final long begin = Math.max(0, end - capacity);
+      final int pid = android.os.Process.myPid();
+      final JsonObject events = JsonObject.newArray();
+
+      for (long i = begin; i < end; ++i) {
+        final int slot = (int) (i & (capacity - 1));
+
+        final long start = buffer.startNanos[slot];
+        final long duration = buffer.durationNanos[slot];
+        final String name = buffer.names[slot];
+        final String command = buffer.commands[slot];
+        final String session = buffer.sessions[slot];
+
+        // The writer may have lapped the reader while the entry was copied.
+        if (buffer.written - i > capacity) {
+          continue;
+        }
+
+        JsonObject args = JsonObject.newObject();
+        args.put("command", command);
+        args.put("session", session);
+
+        JsonObject event = JsonObject.newObject();
+        event.put("name", name);
+        event.put("cat", "fastest");
+        event.put("ph", "X");
+        event.put("ts", start / 1000.0);
+        event.put("dur", duration / 1000.0);
+        event.put("pid", pid);
+        event.put("tid", mainThreadId);
+        event.put("args", args);
+        events.add(event);
+      }
+
+      JsonObject trace = JsonObject.newObject();
+      trace.put("traceEvents", events);
+      trace.put("displayTimeUnit", "ms");
+      return trace;
+    }
+
+    private static class Buffer {
+      final long[] startNanos;
+      final long[] durationNanos;
+      final String[] names;
+      final String[] commands;
+      final String[] sessions;
+      volatile long written;
+
+      Buffer(int size) {
+        startNanos = new long[size];
+        durationNanos = new long[size];
+        names = new String[size];
+        commands = new String[size];
+        sessions = new String[size];
+      }
+    }
+
+    static void beginSection(String name) {
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+        // Section names are limited to 127 characters.
+        Trace.beginSection(name.length() > 127 ? name.substring(0, 127) : name);
+      }
+    }
+
+    static void endSection() {
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+        Trace.endSection();
+      }
+    }
+  }
+
+
+
+
+  private static class StartFrameRecordingRequestHandler extends MainThreadRequestHandler {
+
+    StartFrameRecordingRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("frames/start");
+    }
+
+    @Override
+    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, Callback<JsonObject> callback) {
+      final Activity activity = ctx.viewFinder.getCurrentActivity();
+
+      if (activity == null) {
+        throw new RuntimeException("no resumed activity");
+      }
+
+      ctx.frameRecorder.start(activity);
+      callback.done(null, JsonObject.newObject());
+    }
+  }
+
+
+
+
+  private static class StopFrameRecordingRequestHandler extends MainThreadRequestHandler {
+
+    StopFrameRecordingRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("frames/stop");
+    }
+
+    @Override
+    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, Callback<JsonObject> callback) {
+      JsonObject result = JsonObject.newObject();
+      result.put("value", ctx.frameRecorder.stop());
+      callback.done(null, result);
+    }
+  }
+
+
+
+
+  // Records frame timings of the app. Choreographer frame callbacks give the interval between
+  // consecutive frames (API 16+) and on API 24+ `FrameMetrics` also gives the time it took to
+  // render each frame of the activity's window. Must be used from the main thread.
+  private static class FrameRecorder {
+    private static final int WORST_FRAME_COUNT = 5;
+    private static final long[] HISTOGRAM_BUCKETS_MS = { 8, 16, 24, 32, 50, 100, 200, 500 };
+
+    private final LongList frameIntervals = new LongList();
+    private final LongList frameTimes = new LongList();
+    private Choreographer.FrameCallback frameCallback;
+    private FrameMetricsRecorder frameMetricsRecorder;
+    private long startNanos;
+    private long lastFrameTimeNanos;
+    private long frameBudgetNanos;
+
+    void start(Activity activity) {
+      if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+        throw new RuntimeException("frame recording requires API level 16");
+      }
+
+      stopRecording();
+
+      final float refreshRate = activity.getWindowManager().getDefaultDisplay().getRefreshRate();
+      frameBudgetNanos = (long) (1e9 / (refreshRate > 0 ? refreshRate : 60));
+      startNanos = System.nanoTime();
+      lastFrameTimeNanos = 0;
+      frameIntervals.clear();
+      frameTimes.clear();
+
+      frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+          if (frameCallback != this) {
+            return;
+          }
+
+          if (lastFrameTimeNanos != 0) {
+            frameIntervals.add(frameTimeNanos - lastFrameTimeNanos);
+            frameTimes.add(System.nanoTime());
+          }
+
+          lastFrameTimeNanos = frameTimeNanos;
+          Choreographer.getInstance().postFrameCallback(this);
         }
       };
+
+      Choreographer.getInstance().postFrameCallback(frameCallback);
+
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+        frameMetricsRecorder = new FrameMetricsRecorder(activity.getWindow());
+      }
+    }
+
+    JsonObject stop() {
+      if (frameCallback == null) {
+        throw new RuntimeException("frame recording has not been started");
+      }
+
+      stopRecording();
+
+      JsonObject value = JsonObject.newObject();
+      value.put("durationMs", (System.nanoTime() - startNanos) / 1e6);
+      value.put("frameBudgetMs", frameBudgetNanos / 1e6);
+
+      // Frame intervals longer than one and a half frame budgets mean that at least one
+      // vsync was missed.
+      value.put("choreographer", stats(frameIntervals, frameTimes, frameBudgetNanos * 3 / 2));
+
+      if (frameMetricsRecorder != null) {
+        final FrameMetricsRecorder metrics = frameMetricsRecorder;
+        frameMetricsRecorder = null;
+
+        synchronized (metrics) {
+          value.put("frameMetrics", stats(metrics.durations, metrics.times, frameBudgetNanos));
+          value.put("droppedReports", metrics.dropped);
+        }
+      }
+
+      return value;
+    }
+
+    private void stopRecording() {
+      if (frameCallback != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+        Choreographer.getInstance().removeFrameCallback(frameCallback);
+      }
+
+      frameCallback = null;
+
+      if (frameMetricsRecorder != null) {
+        frameMetricsRecorder.stop();
+      }
+    }
+
+    private JsonObject stats(LongList durations, LongList times, long jankThresholdNanos) {
+      final long[] sorted = durations.toArray();
+      Arrays.sort(sorted);
+
+      int janky = 0;
+      for (long duration : sorted) {
+        if (duration > jankThresholdNanos) {
+          ++janky;
+        }
+      }
+
+      JsonObject stats = Percentiles.distribution(sorted);
+      stats.put("frames", sorted.length);
+      stats.put("jankyFrames", janky);
+      stats.put("p95Ms", Percentiles.percentile(sorted, 0.95) / 1e6);
+      stats.put("histogram", histogram(sorted));
+      stats.put("worstFrames", worstFrames(durations, times));
+      return stats;
+    }
+
+    static JsonObject histogram(long[] sorted) {
+      JsonObject histogram = JsonObject.newArray();
+      int index = 0;
+
+      for (int i = 0; i <= HISTOGRAM_BUCKETS_MS.length; ++i) {
+        final long fromMs = i == 0 ? 0 : HISTOGRAM_BUCKETS_MS[i - 1];
+        final long toNanos = i < HISTOGRAM_BUCKETS_MS.length ? HISTOGRAM_BUCKETS_MS[i] * 1000000L : Long.MAX_VALUE;
+        int count = 0;
+
+        while (index < sorted.length && sorted[index] < toNanos) {
+          ++count;
+          ++index;
+        }
+
+        JsonObject bucket = JsonObject.newObject();
+        bucket.put("fromMs", fromMs);
+
+        if (i < HISTOGRAM_BUCKETS_MS.length) {
+          bucket.put("toMs", HISTOGRAM_BUCKETS_MS[i]);
+        }
+
+        bucket.put("count", count);
+        histogram.add(bucket);
+      }
+
+      return histogram;
+    }
+
+    private JsonObject worstFrames(LongList durations, LongList times) {
+      final JsonObject worst = JsonObject.newArray();
+      final boolean[] picked = new boolean[durations.size()];
+
+      for (int n = 0; n < WORST_FRAME_COUNT && n < durations.size(); ++n) {
+        int worstIndex = -1;
+
+        for (int i = 0; i < durations.size(); ++i) {
+          if (!picked[i] && (worstIndex == -1 || durations.get(i) > durations.get(worstIndex))) {
+            worstIndex = i;
+          }
+        }
+
+        picked[worstIndex] = true;
+
+        JsonObject frame = JsonObject.newObject();
+        frame.put("atMs", (times.get(worstIndex) - startNanos) / 1e6);
+        frame.put("durationMs", durations.get(worstIndex) / 1e6);
+        worst.add(frame);
+      }
+
+      return worst;
     }
   }
 
 
 
 
-  private static class ClickElementRequestHandler extends ElementRequestHandler {
+  @TargetApi(Build.VERSION_CODES.N)
+  private static class FrameMetricsRecorder implements Window.OnFrameMetricsAvailableListener {
+    private static HandlerThread thread;
 
-    ClickElementRequestHandler(TestContext ctx) {
+    final LongList durations = new LongList();
+    final LongList times = new LongList();
+    int dropped;
+
+    private final Window window;
+
+    FrameMetricsRecorder(Window window) {
+      this.window = window;
+      window.addOnFrameMetricsAvailableListener(this, new Handler(getThread().getLooper()));
+    }
+
+    static synchronized HandlerThread getThread() {
+      if (thread == null) {
+        thread = new HandlerThread("FasTest-frame-metrics");
+        thread.start();
+      }
+
+      return thread;
+    }
+
+    void stop() {
+      try {
+        window.removeOnFrameMetricsAvailableListener(this);
+      } catch (RuntimeException ignored) {
+        // Already removed or the window has no renderer anymore.
+      }
+    }
+
+    @Override
+    public synchronized void onFrameMetricsAvailable(Window window, FrameMetrics metrics, int dropCount) {
+      dropped += dropCount;
+
+      if (metrics.getMetric(FrameMetrics.FIRST_DRAW_FRAME) == 1) {
+        return;
+      }
+
+      durations.add(metrics.getMetric(FrameMetrics.TOTAL_DURATION));
+      times.add(System.nanoTime());
+    }
+  }
+
+
+
+
+  // Measures how long the app takes to respond visually to the input injected by the click
+  // and flick commands. While enabled, a command registers a measurement right before it
+  // injects its first event and marks it right before it injects its last one, so the time the
+  // app spends handling the events synchronously, like in click listeners, is included. Draws of the visible windows are
+  // observed with `OnDrawListener`s and Choreographer frame callbacks tick while measurements
+  // are active. A measurement gives the time from the first event to the first frame drawn
+  // after it, and the time from the last event to the last frame drawn before the windows
+  // stayed undrawn for `quietMs`. Must be used from the main thread.
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  private static class InputLatency {
+    static final long DEFAULT_QUIET_MS = 100L;
+    private static final long MAX_MEASUREMENT_NANOS = 5000L * 1000000L;
+
+    private final ViewFinder viewFinder;
+    private final List<Measurement> active = new ArrayList<>();
+    private final WeakHashMap<ViewTreeObserver, Boolean> observers = new WeakHashMap<>();
+    private final Map<String, Results> results = new LinkedHashMap<>();
+    private Choreographer.FrameCallback frameCallback;
+    private boolean enabled = false;
+    private long quietNanos = DEFAULT_QUIET_MS * 1000000L;
+
+    // Created on start so that API 15 never loads the listener class.
+    private ViewTreeObserver.OnDrawListener drawListener;
+
+    static class Measurement {
+      final String command;
+      final long startNanos;
+      long lastInputNanos = 0;
+      long firstFrameNanos = 0;
+      long lastFrameNanos = 0;
+
+      Measurement(String command, long startNanos) {
+        this.command = command;
+        this.startNanos = startNanos;
+      }
+    }
+
+    private static class Results {
+      final LongList firstFrame = new LongList();
+      final LongList settled = new LongList();
+      int noFrame = 0;
+      int timedOut = 0;
+    }
+
+    InputLatency(ViewFinder viewFinder) {
+      this.viewFinder = viewFinder;
+    }
+
+    void start(long quietMs) {
+      if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+        throw new RuntimeException("input latency measurement requires API level 16");
+      }
+
+      if (drawListener == null) {
+        drawListener = new ViewTreeObserver.OnDrawListener() {
+          @Override
+          public void onDraw() {
+            onWindowDraw();
+          }
+        };
+      }
+
+      enabled = true;
+      quietNanos = quietMs * 1000000L;
+      active.clear();
+      results.clear();
+    }
+
+    JsonObject stop() {
+      enabled = false;
+      active.clear();
+
+      for (ViewTreeObserver observer : observers.keySet()) {
+        if (observer.isAlive()) {
+          observer.removeOnDrawListener(drawListener);
+        }
+      }
+
+      observers.clear();
+      return toJson();
+    }
+
+    // Called right before the first event of a command is injected with the event's time, so
+    // that the app's synchronous handling of the events is measured too. Returns null if the
+    // measurement isn't enabled.
+    Measurement begin(String command, long eventTime) {
+      if (!enabled) {
+        return null;
+      }
+
+      final Measurement measurement = new Measurement(command, toNanoTime(eventTime));
+      active.add(measurement);
+      observeWindows();
+
+      if (frameCallback == null) {
+        frameCallback = new Choreographer.FrameCallback() {
+          @Override
+          public void doFrame(long frameTimeNanos) {
+            onFrame();
+          }
+        };
+
+        Choreographer.getInstance().postFrameCallback(frameCallback);
+      }
+
+      return measurement;
+    }
+
+    // Called right before the last event of a command is injected with the event's time.
+    void lastInput(Measurement measurement, long eventTime) {
+      if (measurement != null) {
+        measurement.lastInputNanos = toNanoTime(eventTime);
+      }
+    }
+
+    // Converts an event time in uptime milliseconds to the `System.nanoTime` clock.
+    static long toNanoTime(long eventTime) {
+      return System.nanoTime() - Math.max(0, SystemClock.uptimeMillis() - eventTime) * 1000000L;
+    }
+
+    private void onWindowDraw() {
+      final long now = System.nanoTime();
+
+      for (Measurement measurement : active) {
+        if (measurement.firstFrameNanos == 0) {
+          measurement.firstFrameNanos = now;
+        }
+
+        if (measurement.lastInputNanos != 0) {
+          measurement.lastFrameNanos = now;
+        }
+      }
+    }
+
+    private void onFrame() {
+      final long now = System.nanoTime();
+
+      for (Iterator<Measurement> it = active.iterator(); it.hasNext(); ) {
+        final Measurement measurement = it.next();
+        final boolean timedOut = now - measurement.startNanos >= MAX_MEASUREMENT_NANOS;
+
+        if (timedOut || (measurement.lastInputNanos != 0
+          && now - Math.max(measurement.lastInputNanos, measurement.lastFrameNanos) >= quietNanos)) {
+          record(measurement, timedOut);
+          it.remove();
+        }
+      }
+
+      if (active.isEmpty()) {
+        frameCallback = null;
+      } else {
+        // The tap may have opened a new window, for example the next activity's.
+        observeWindows();
+        Choreographer.getInstance().postFrameCallback(frameCallback);
+      }
+    }
+
+    private void observeWindows() {
+      for (View rootView : viewFinder.getVisibleRootViews()) {
+        final ViewTreeObserver observer = rootView.getViewTreeObserver();
+
+        if (observer.isAlive() && !observers.containsKey(observer)) {
+          observer.addOnDrawListener(drawListener);
+          observers.put(observer, Boolean.TRUE);
+        }
+      }
+    }
+
+    private void record(Measurement measurement, boolean timedOut) {
+      Results commandResults = results.get(measurement.command);
+
+      if (commandResults == null) {
+        commandResults = new Results();
+        results.put(measurement.command, commandResults);
+      }
+
+      if (timedOut) {
+        ++commandResults.timedOut;
+      } else if (measurement.firstFrameNanos == 0) {
+        ++commandResults.noFrame;
+      } else {
+        commandResults.firstFrame.add(measurement.firstFrameNanos - measurement.startNanos);
+        commandResults.settled.add(Math.max(0, measurement.lastFrameNanos - measurement.lastInputNanos));
+      }
+    }
+
+    JsonObject toJson() {
+      final JsonObject commands = JsonObject.newObject();
+
+      for (Map.Entry<String, Results> entry : results.entrySet()) {
+        final Results commandResults = entry.getValue();
+        final JsonObject command = JsonObject.newObject();
+
+        command.put("count", commandResults.firstFrame.size());
+        command.put("noFrame", commandResults.noFrame);
+        command.put("timedOut", commandResults.timedOut);
+        command.put("firstFrame", distribution(commandResults.firstFrame));
+        command.put("settled", distribution(commandResults.settled));
+        commands.put(entry.getKey(), command);
+      }
+
+      final JsonObject value = JsonObject.newObject();
+      value.put("enabled", enabled);
+      value.put("quietMs", quietNanos / 1e6);
+      value.put("pending", active.size());
+      value.put("commands", commands);
+      return value;
+    }
+
+    private static JsonObject distribution(LongList values) {
+      final long[] sorted = values.toArray();
+      Arrays.sort(sorted);
+
+      final JsonObject json = Percentiles.distribution(sorted);
+      json.put("histogram", FrameRecorder.histogram(sorted));
+      return json;
+    }
+  }
+
+
+
+
+  // `POST .../input_latency/start` with an optional `{"quietMs": 100}` enables measuring the
+  // click and flick commands and clears the previous results. `POST .../input_latency/stop`
+  // disables it and `GET .../input_latency` returns the results without stopping.
+  private static class InputLatencyRequestHandler extends MainThreadRequestHandler {
+
+    InputLatencyRequestHandler(TestContext ctx) {
       super(ctx);
     }
 
     @Override
     boolean canHandle(NanoHTTPD.IHTTPSession req) {
-      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("click");
+      final String uri = req.getUri();
+
+      return req.getMethod() == NanoHTTPD.Method.POST && (uri.endsWith("input_latency/start") || uri.endsWith("input_latency/stop"))
+        || req.getMethod() == NanoHTTPD.Method.GET && uri.endsWith("input_latency");
     }
 
     @Override
-    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, final Callback<JsonObject> callback) {
-      final View view = findElementView(req);
-      final Rect rect = ViewUtils.getViewRectInWindow(view);
-      final long downTime = SystemClock.uptimeMillis();
+    boolean invalidatesCache() {
+      return false;
+    }
 
-      ViewUtils.dispatchTouchEvent(
-        view,
-        MotionEvent.ACTION_DOWN,
-        downTime,
-        downTime,
-        rect.centerX(),
-        rect.centerY()
+    @Override
+    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, Callback<JsonObject> callback) {
+      final JsonObject result = JsonObject.newObject();
+
+      if (req.getUri().endsWith("start")) {
+        ctx.inputLatency.start(body.has("quietMs") ? body.getLong("quietMs") : InputLatency.DEFAULT_QUIET_MS);
+        result.put("value", ctx.inputLatency.toJson());
+      } else if (req.getUri().endsWith("stop")) {
+        result.put("value", ctx.inputLatency.stop());
+      } else {
+        result.put("value", ctx.inputLatency.toJson());
+      }
+
+      callback.done(null, result);
+    }
+  }
+
+
+
+
+  private static class StartMemorySamplingRequestHandler extends ServerThreadRequestHandler {
+
+    StartMemorySamplingRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("memory/start");
+    }
+
+    @Override
+    JsonObject handleInServerThread(NanoHTTPD.IHTTPSession req, JsonObject body) {
+      ctx.memorySampler.start(
+        body.has("intervalMs") ? body.getLong("intervalMs") : MemorySampler.DEFAULT_INTERVAL_MILLIS,
+        body.has("capacity") ? body.getInt("capacity") : MemorySampler.DEFAULT_CAPACITY,
+        body.has("pssEvery") ? body.getInt("pssEvery") : MemorySampler.DEFAULT_PSS_EVERY
       );
 
-      ctx.handler.postDelayed(new Runnable() {
-        @Override
-        public void run() {
-          final Rect rect = ViewUtils.getViewRectInWindow(view);
+      return JsonObject.newObject();
+    }
+  }
 
-          ViewUtils.dispatchTouchEvent(
-            view,
-            MotionEvent.ACTION_UP,
-            downTime,
-            SystemClock.uptimeMillis(),
-            rect.centerX(),
-            rect.centerY()
-          );
 
-          callback.done(null, JsonObject.newObject());
-        }
-      }, 50);
+
+
+  private static class StopMemorySamplingRequestHandler extends ServerThreadRequestHandler {
+
+    StopMemorySamplingRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("memory/stop");
+    }
+
+    @Override
+    JsonObject handleInServerThread(NanoHTTPD.IHTTPSession req, JsonObject body) {
+      ctx.memorySampler.stop();
+      return JsonObject.newObject();
     }
   }
 
 
 
 
-  private static class IsElementDisplayedRequestHandler extends ElementRequestHandler {
+  private static class GetMemorySamplesRequestHandler extends ServerThreadRequestHandler {
 
-    IsElementDisplayedRequestHandler(TestContext ctx) {
+    GetMemorySamplesRequestHandler(TestContext ctx) {
       super(ctx);
     }
 
     @Override
     boolean canHandle(NanoHTTPD.IHTTPSession req) {
-      return req.getMethod() == NanoHTTPD.Method.GET && req.getUri().endsWith("displayed");
+      return req.getMethod() == NanoHTTPD.Method.GET && req.getUri().endsWith("memory");
     }
 
     @Override
-    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, final Callback<JsonObject> callback) {
-      View view = findElementView(req);
+    JsonObject handleInServerThread(NanoHTTPD.IHTTPSession req, JsonObject body) {
       JsonObject result = JsonObject.newObject();
-      result.put("value", ViewUtils.isVisible(view));
-      callback.done(null, result);
+      result.put("value", ctx.memorySampler.toJson());
+      return result;
     }
   }
 
 
 
 
-  private static class IsElementEnabledRequestHandler extends ElementRequestHandler {
+  private static class MarkMemoryRequestHandler extends ServerThreadRequestHandler {
 
-    IsElementEnabledRequestHandler(TestContext ctx) {
+    MarkMemoryRequestHandler(TestContext ctx) {
       super(ctx);
     }
 
     @Override
     boolean canHandle(NanoHTTPD.IHTTPSession req) {
-      return req.getMethod() == NanoHTTPD.Method.GET && req.getUri().endsWith("enabled");
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("memory/mark");
+    }
+
+    @Override
+    JsonObject handleInServerThread(NanoHTTPD.IHTTPSession req, JsonObject body) {
+      final String name = body.getString("name");
+      final boolean gc = body.has("gc") && body.getBoolean("gc");
+
+      JsonObject result = JsonObject.newObject();
+      result.put("value", MemorySampler.toJson(ctx.memorySampler.mark(name, gc)));
+      return result;
+    }
+  }
+
+
+
+
+  private static class DiffMemoryRequestHandler extends ServerThreadRequestHandler {
+
+    DiffMemoryRequestHandler(TestContext ctx) {
+      super(ctx);
+    }
+
+    @Override
+    boolean canHandle(NanoHTTPD.IHTTPSession req) {
+      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("memory/diff");
     }
 
-    @Override
-    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, final Callback<JsonObject> callback) {
-      View view = findElementView(req);
-      JsonObject result = JsonObject.newObject();
-      result.put("value", view.isEnabled());
-      callback.done(null, result);
-    }
-  }
+    @Override
+    JsonObject handleInServerThread(NanoHTTPD.IHTTPSession req, JsonObject body) {
+      final boolean gc = body.has("gc") && body.getBoolean("gc");
+      final long[] from = ctx.memorySampler.getMark(body.getString("from"));
+      final long[] to = body.has("to")
+        ? ctx.memorySampler.getMark(body.getString("to"))
+        : MemorySampler.sample(new long[MemorySampler.FIELD_COUNT], true, gc);
+      final long[] diff = new long[MemorySampler.FIELD_COUNT];
+
+      for (int i = 0; i < diff.length; ++i) {
+        diff[i] = from[i] < 0 || to[i] < 0 ? -1 : to[i] - from[i];
+      }
+
+      JsonObject value = JsonObject.newObject();
+      value.put("from", MemorySampler.toJson(from));
+      value.put("to", MemorySampler.toJson(to));
+      value.put("diff", MemorySampler.toJson(diff));
+
+      JsonObject result = JsonObject.newObject();
+      result.put("value", value);
+      return result;
+    }
+  }
+
+
+
+
+  // Samples the app's memory usage in a background thread. The samples are stored in a
+  // preallocated ring buffer of primitives so that sampling doesn't allocate anything
+  // itself, except for the strings `Debug.getRuntimeStat` returns for the GC counts.
+  private static class MemorySampler {
+    static final long DEFAULT_INTERVAL_MILLIS = 1000L;
+    static final int DEFAULT_CAPACITY = 3600;
+    static final int DEFAULT_PSS_EVERY = 10;
+
+    static final int TIME_MILLIS = 0;
+    static final int JAVA_HEAP_USED = 1;
+    static final int JAVA_HEAP_TOTAL = 2;
+    static final int NATIVE_HEAP_ALLOCATED = 3;
+    static final int GC_COUNT = 4;
+    static final int BLOCKING_GC_COUNT = 5;
+    static final int PSS_KB = 6;
+    static final int FIELD_COUNT = 7;
+    static final String[] FIELD_NAMES = {
+      "timeMs", "javaHeapUsed", "javaHeapTotal", "nativeHeapAllocated", "gcCount", "blockingGcCount", "pssKb"
+    };
+
+    private final Map<String, long[]> marks = new HashMap<>();
+    private long[] samples = new long[0];
+    private int capacity;
+    private long written;
+    private Thread thread;
+    // Incremented on every stop so that a thread that is still finishing a sample after a
+    // restart can't write it into the new run's buffer.
+    private int generation;
+
+    synchronized void start(final long intervalMillis, int capacity, final int pssEvery) {
+      if (capacity <= 0) {
+        throw new RuntimeException("capacity must be positive, got " + capacity);
+      }
+
+      if (intervalMillis <= 0) {
+        throw new RuntimeException("intervalMs must be positive, got " + intervalMillis);
+      }
+
+      stop();
+
+      this.capacity = capacity;
+      this.samples = new long[capacity * FIELD_COUNT];
+      this.written = 0;
 
+      final int runGeneration = generation;
 
+      thread = new Thread("FasTest-memory-sampler") {
+        @Override
+        public void run() {
+          final long[] sample = new long[FIELD_COUNT];
+          long count = 0;
 
+          while (!isInterrupted()) {
+            // Reading PSS walks the process' memory maps, which is slow, so it is only
+            // done every `pssEvery` samples.
+            final boolean readPss = pssEvery > 0 && count % pssEvery == 0;
+            sample(sample, readPss, false);
 
-  private static class IsElementSelectedRequestHandler extends ElementRequestHandler {
+            if (!store(runGeneration, sample)) {
+              return;
+            }
 
-    IsElementSelectedRequestHandler(TestContext ctx) {
-      super(ctx);
-    }
+            ++count;
 
-    @Override
-    boolean canHandle(NanoHTTPD.IHTTPSession req) {
-      return req.getMethod() == NanoHTTPD.Method.GET && req.getUri().endsWith("selected");
+            try {
+              Thread.sleep(intervalMillis);
+            } catch (InterruptedException stopped) {
+              return;
+            }
+          }
+        }
+      };
+
+      thread.setDaemon(true);
+      thread.start();
     }
 
-    @Override
-    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, final Callback<JsonObject> callback) {
-      View view = findElementView(req);
-      JsonObject result = JsonObject.newObject();
+    synchronized void stop() {
+      ++generation;
 
-      if (view instanceof CompoundButton) {
-        CompoundButton button = (CompoundButton) view;
-        result.put("value", button.isChecked());
-      } else {
-        result.put("value", view.isSelected());
+      if (thread != null) {
+        thread.interrupt();
+        thread = null;
       }
-
-      callback.done(null, result);
     }
-  }
-
 
+    // Returns false, without storing the sample, if the run has been stopped.
+    private synchronized boolean store(int runGeneration, long[] sample) {
+      if (runGeneration != generation) {
+        return false;
+      }
 
+      final int offset = (int) (written % capacity) * FIELD_COUNT;
+      System.arraycopy(sample, 0, samples, offset, FIELD_COUNT);
+      ++written;
+      return true;
+    }
 
-  private static class SetElementValueRequestHandler extends ElementRequestHandler {
+    long[] mark(String name, boolean gc) {
+      final long[] sample = sample(new long[FIELD_COUNT], true, gc);
 
-    SetElementValueRequestHandler(TestContext ctx) {
-      super(ctx);
-    }
+      synchronized (this) {
+        marks.put(name, sample);
+      }
 
-    @Override
-    boolean canHandle(NanoHTTPD.IHTTPSession req) {
-      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("value");
+      return sample;
     }
 
-    @Override
-    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, Callback<JsonObject> callback) {
-      View view = findElementView(req);
-      JsonObject value = body.getJsonArray("value");
-      String text = "";
+    synchronized long[] getMark(String name) {
+      final long[] sample = marks.get(name);
 
-      for (int i = 0; i < value.size(); ++i) {
-        text += value.getString(i);
+      if (sample == null) {
+        throw new RuntimeException("no memory mark " + name);
       }
 
-      ((EditText) view).setText(text);
-      callback.done(null, JsonObject.newObject());
+      return sample;
     }
-  }
 
+    synchronized JsonObject toJson() {
+      final long count = Math.min(written, capacity);
+      final JsonObject series = JsonObject.newObject();
 
+      for (int field = 0; field < FIELD_COUNT; ++field) {
+        final JsonObject values = JsonObject.newArray();
 
+        for (long i = written - count; i < written; ++i) {
+          values.add(samples[(int) (i % capacity) * FIELD_COUNT + field]);
+        }
 
-  private static class GetElementTextRequestHandler extends ElementRequestHandler {
+        series.put(FIELD_NAMES[field], values);
+      }
 
-    GetElementTextRequestHandler(TestContext ctx) {
-      super(ctx);
+      series.put("sampling", thread != null);
+      series.put("dropped", written - count);
+      return series;
     }
 
-    @Override
-    boolean canHandle(NanoHTTPD.IHTTPSession req) {
-      return req.getMethod() == NanoHTTPD.Method.GET && req.getUri().endsWith("text");
+    static JsonObject toJson(long[] sample) {
+      final JsonObject json = JsonObject.newObject();
+
+      for (int field = 0; field < FIELD_COUNT; ++field) {
+        json.put(FIELD_NAMES[field], sample[field]);
+      }
+
+      return json;
     }
 
-    @Override
-    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, Callback<JsonObject> callback) {
-      View view = findElementView(req);
-      TextView textView = (TextView) view;
-      JsonObject result = JsonObject.newObject();
+    static long[] sample(long[] into, boolean readPss, boolean gc) {
+      final Runtime runtime = Runtime.getRuntime();
 
-      if (textView.getText() != null) {
-        result.put("value", textView.getText().toString());
+      if (gc) {
+        runtime.gc();
+        runtime.runFinalization();
+        runtime.gc();
+      }
+
+      into[TIME_MILLIS] = System.currentTimeMillis();
+      into[JAVA_HEAP_TOTAL] = runtime.totalMemory();
+      into[JAVA_HEAP_USED] = into[JAVA_HEAP_TOTAL] - runtime.freeMemory();
+      into[NATIVE_HEAP_ALLOCATED] = Debug.getNativeHeapAllocatedSize();
+
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+        into[GC_COUNT] = parseStat(Debug.getRuntimeStat("art.gc.gc-count"));
+        into[BLOCKING_GC_COUNT] = parseStat(Debug.getRuntimeStat("art.gc.blocking-gc-count"));
       } else {
-        result.put("value", (String) null);
+        into[GC_COUNT] = -1;
+        into[BLOCKING_GC_COUNT] = -1;
       }
 
-      callback.done(null, result);
+      into[PSS_KB] = readPss ? Debug.getPss() : -1;
+      return into;
     }
-  }
 
+    static long parseStat(String stat) {
+      try {
+        return stat == null ? -1 : Long.parseLong(stat);
+      } catch (NumberFormatException error) {
+        return -1;
+      }
+    }
+  }
 
 
 
-  private static class GetElementRectRequestHandler extends ElementRequestHandler {
 
-    GetElementRectRequestHandler(TestContext ctx) {
-      super(ctx);
-    }
+  // Summarizes sorted durations in nanoseconds. All latency reports use these so that their
+  // percentiles are computed the same way and have the same keys.
+  private static class Percentiles {
+    // Nearest-rank percentile. Zero for no samples.
+    static long percentile(long[] sorted, double percentile) {
+      if (sorted.length == 0) {
+        return 0;
+      }
 
-    @Override
-    boolean canHandle(NanoHTTPD.IHTTPSession req) {
-      return req.getMethod() == NanoHTTPD.Method.GET && req.getUri().endsWith("rect");
+      return sorted[Math.max(0, (int) Math.ceil(percentile * sorted.length) - 1)];
     }
 
-    @Override
-    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, Callback<JsonObject> callback) {
-      View view = findElementView(req);
-      Rect rect = ViewUtils.getViewRectInWindow(view);
-
-      JsonObject result = JsonObject.newObject();
-      JsonObject rectJson = JsonObject.newObject();
+    static JsonObject distribution(long[] sorted) {
+      final int count = sorted.length;
+      final JsonObject json = JsonObject.newObject();
+      long sum = 0;
 
-      rectJson.put("x", rect.left);
-      rectJson.put("y", rect.top);
-      rectJson.put("width", rect.width());
-      rectJson.put("height", rect.height());
+      for (long value : sorted) {
+        sum += value;
+      }
 
-      result.put("value", rectJson);
-      callback.done(null, result);
+      json.put("count", count);
+      json.put("minMs", count > 0 ? sorted[0] / 1e6 : 0);
+      json.put("meanMs", count > 0 ? sum / 1e6 / count : 0);
+      json.put("p50Ms", percentile(sorted, 0.50) / 1e6);
+      json.put("p90Ms", percentile(sorted, 0.90) / 1e6);
+      json.put("p99Ms", percentile(sorted, 0.99) / 1e6);
+      json.put("maxMs", count > 0 ? sorted[count - 1] / 1e6 : 0);
+      return json;
     }
   }
 
 
 
 
-  private static class FlickRequestHandler extends ElementRequestHandler {
-    private final static int STEPS = 50;
+  // A growable list of primitive longs.
+  private static class LongList {
+    private long[] values = new long[64];
+    private int size;
 
-    FlickRequestHandler(TestContext ctx) {
-      super(ctx);
+    void add(long value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+
+      values[size++] = value;
     }
 
-    @Override
-    boolean canHandle(NanoHTTPD.IHTTPSession req) {
-      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("flick");
+    long get(int index) {
+      return values[index];
     }
 
-    @Override
-    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, final Callback<JsonObject> callback) {
-      final View view = ctx.findView(body.getString("element"));
-      final Rect rect = ViewUtils.getViewRectInWindow(view);
+    int size() {
+      return size;
+    }
 
-      final double xOffset = body.getDouble("xoffset");
-      final double yOffset = body.getDouble("yoffset");
-      final double speed = body.getDouble("speed");
+    void clear() {
+      size = 0;
+    }
 
-      final double distance = Math.sqrt(xOffset * xOffset + yOffset * yOffset);
-      final double durationSeconds = distance / speed;
-      final double intervalSeconds = durationSeconds / STEPS;
-      final long intervalMillis = Math.round(intervalSeconds * 1000);
+    long[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
 
-      AsyncUtils.poll(ctx.handler, intervalMillis, Integer.MAX_VALUE, new Func<Void, Boolean>() {
-        private int step = -1;
-        private long downTime;
 
-        @Override
-        public Boolean run(Void value) {
-          final long time = SystemClock.uptimeMillis();
-          ++step;
 
-          if (step == 0) {
-            downTime = time;
 
-            ViewUtils.dispatchTouchEvent(
-              view,
-              MotionEvent.ACTION_DOWN,
-              downTime,
-              time,
-              rect.centerX(),
-              rect.centerY()
-            );
+  // A request that didn't come from the network. Used to feed recorded commands back
+  // through the request handlers. The handlers can be run directly with `Server.dispatch`,
+  // or the whole request can be served like a network request with `execute`.
+  static class ReplaySession implements NanoHTTPD.IHTTPSession {
+    private final Server server;
+    private final NanoHTTPD.Method method;
+    private final String uri;
+    private final byte[] body;
+    private final Map<String, String> headers = new HashMap<>();
+    private NanoHTTPD.Response response;
 
-            return null;
-          } else if (step == STEPS) {
-            ViewUtils.dispatchTouchEvent(
-              view,
-              MotionEvent.ACTION_UP,
-              downTime,
-              time,
-              (float) (rect.centerX() + xOffset),
-              (float) (rect.centerY() + yOffset)
-            );
+    ReplaySession(Server server, String method, String uri, String body) {
+      try {
+        this.server = server;
+        this.method = NanoHTTPD.Method.valueOf(method);
+        this.uri = uri;
+        this.body = body.getBytes("UTF-8");
+        this.headers.put(Server.HEADER_CONTENT_LENGTH, String.valueOf(this.body.length));
+      } catch (Throwable error) {
+        throw new RuntimeException(error);
+      }
+    }
 
-            return true;
-          } else {
-            final double fraction = step / (double) STEPS;
+    // Serves the request through `Server.serve`, which also records it in an active trace.
+    @Override
+    public void execute() throws IOException {
+      response = server.serve(this);
+    }
 
-            ViewUtils.dispatchTouchEvent(
-              view,
-              MotionEvent.ACTION_MOVE,
-              downTime,
-              time,
-              (float) (rect.centerX() + xOffset * fraction),
-              (float) (rect.centerY() + yOffset * fraction)
-            );
+    // The response of `execute`.
+    NanoHTTPD.Response getResponse() {
+      return response;
+    }
 
-            return null;
-          }
-        }
-      }, new Callback<Boolean>() {
-        @Override
-        public void done(Throwable error, Boolean result) {
-          if (error != null) {
-            callback.done(error, null);
-          } else {
-            callback.done(null, JsonObject.newObject());
-          }
-        }
-      });
+    @Override
+    public NanoHTTPD.CookieHandler getCookies() {
+      return null;
     }
-  }
 
+    @Override
+    public Map<String, String> getHeaders() {
+      return headers;
+    }
 
+    @Override
+    public InputStream getInputStream() {
+      return new ByteArrayInputStream(body);
+    }
 
+    @Override
+    public NanoHTTPD.Method getMethod() {
+      return method;
+    }
 
-  private static class HideKeyboardRequestHandler extends RequestHandler {
+    @Override
+    @SuppressWarnings("deprecation")
+    public Map<String, String> getParms() {
+      return Collections.emptyMap();
+    }
 
-    HideKeyboardRequestHandler(TestContext ctx) {
-      super(ctx);
+    @Override
+    public Map<String, List<String>> getParameters() {
+      return Collections.emptyMap();
     }
 
     @Override
-    boolean canHandle(NanoHTTPD.IHTTPSession req) {
-      return req.getMethod() == NanoHTTPD.Method.POST && req.getUri().endsWith("hide_keyboard");
+    public String getQueryParameterString() {
+      return null;
     }
 
     @Override
-    void handleInMainThread(NanoHTTPD.IHTTPSession req, JsonObject body, final Callback<JsonObject> callback) {
-      Activity activity = (Activity) ctx.viewFinder.getRootView().getContext();
+    public String getUri() {
+      return uri;
+    }
 
-      InputMethodManager imm = (InputMethodManager) activity.getSystemService(Context.INPUT_METHOD_SERVICE);
-      imm.hideSoftInputFromWindow(activity.getCurrentFocus().getWindowToken(), 0);
+    @Override
+    public void parseBody(Map<String, String> files) {
+    }
 
-      // Wait until the keyboard is closed.
-      ctx.handler.postDelayed(new Runnable() {
-        @Override
-        public void run() {
-          callback.done(null, JsonObject.newObject());
-        }
-      }, 300);
+    @Override
+    public String getRemoteIpAddress() {
+      return "127.0.0.1";
+    }
+
+    @Override
+    public String getRemoteHostName() {
+      return "localhost";
     }
   }
 
 
 
 
-  private static class JsonObject {
+  static class JsonObject {
     private final JSONObject obj;
     private final JSONArray arr;
 
@@ -836,85 +6097,149 @@ public class FasTest {
       }
     }
 
-    void put(String name, String value) {
+    void put(String name, String value) {
+      try {
+        obj.put(name, value);
+      } catch (Throwable error) {
+        throw new RuntimeException(error);
+      }
+    }
+
+    void put(String name, double value) {
+      try {
+        obj.put(name, value);
+      } catch (Throwable error) {
+        throw new RuntimeException(error);
+      }
+    }
+
+    void put(String name, boolean value) {
+      try {
+        obj.put(name, value);
+      } catch (Throwable error) {
+        throw new RuntimeException(error);
+      }
+    }
+
+    void put(String name, JsonObject value) {
+      try {
+        if (value.arr != null) {
+          obj.put(name, value.arr);
+        } else {
+          obj.put(name, value.obj);
+        }
+      } catch (Throwable error) {
+        throw new RuntimeException(error);
+      }
+    }
+
+    String getString(String name) {
+      try {
+        return obj.getString(name);
+      } catch (Throwable error) {
+        throw new RuntimeException(error);
+      }
+    }
+
+    long getLong(String name) {
+      try {
+        return obj.getLong(name);
+      } catch (Throwable error) {
+        throw new RuntimeException(error);
+      }
+    }
+
+    double getDouble(String name) {
       try {
-        obj.put(name, value);
+        return obj.getDouble(name);
       } catch (Throwable error) {
         throw new RuntimeException(error);
       }
     }
 
-    void put(String name, double value) {
+    boolean getBoolean(String name) {
       try {
-        obj.put(name, value);
+        return obj.getBoolean(name);
       } catch (Throwable error) {
         throw new RuntimeException(error);
       }
     }
 
-    void put(String name, boolean value) {
+    int getInt(String name) {
       try {
-        obj.put(name, value);
+        return obj.getInt(name);
       } catch (Throwable error) {
         throw new RuntimeException(error);
       }
     }
 
-    void put(String name, JsonObject value) {
+    boolean has(String name) {
+      return obj.has(name) && !obj.isNull(name);
+    }
+
+    boolean isArray(String name) {
+      return obj.optJSONArray(name) != null;
+    }
+
+    boolean isObject(String name) {
+      return obj.optJSONObject(name) != null;
+    }
+
+    JsonObject getJsonArray(String name) {
       try {
-        if (value.arr != null) {
-          obj.put(name, value.arr);
-        } else {
-          obj.put(name, value.obj);
-        }
+        return new JsonObject(obj.getJSONArray(name));
       } catch (Throwable error) {
         throw new RuntimeException(error);
       }
     }
 
-    String getString(String name) {
+    JsonObject getJsonObject(String name) {
       try {
-        return obj.getString(name);
+        return new JsonObject(obj.getJSONObject(name));
       } catch (Throwable error) {
         throw new RuntimeException(error);
       }
     }
 
-    long getLong(String name) {
+    int size() {
       try {
-        return obj.getLong(name);
+        return arr.length();
       } catch (Throwable error) {
         throw new RuntimeException(error);
       }
     }
 
-    double getDouble(String name) {
+    String getString(int i) {
       try {
-        return obj.getDouble(name);
+        return arr.getString(i);
       } catch (Throwable error) {
         throw new RuntimeException(error);
       }
     }
 
-    JsonObject getJsonArray(String name) {
+    boolean isObject(int i) {
+      return arr.optJSONObject(i) != null;
+    }
+
+    JsonObject getJsonObject(int i) {
       try {
-        return new JsonObject(obj.getJSONArray(name));
+        return new JsonObject(arr.getJSONObject(i));
       } catch (Throwable error) {
         throw new RuntimeException(error);
       }
     }
 
-    int size() {
+    void add(double value) {
       try {
-        return arr.length();
+        arr.put(value);
       } catch (Throwable error) {
         throw new RuntimeException(error);
       }
     }
 
-    String getString(int i) {
+    void add(String value) {
       try {
-        return arr.getString(i);
+        arr.put(value);
       } catch (Throwable error) {
         throw new RuntimeException(error);
       }
@@ -942,7 +6267,7 @@ public class FasTest {
 
 
   @SuppressWarnings("unchecked")
-  private static class ViewFinder {
+  static class ViewFinder {
     private Activity currentActivity;
 
     ViewFinder(Application app) {
@@ -965,6 +6290,39 @@ public class FasTest {
       return findViews(getRootView(), test, new ArrayList<View>());
     }
 
+    View findFirstViewInWindows(Func<View, Boolean> test) {
+      for (View rootView : getVisibleRootViews()) {
+        final View view = findFirstView(rootView, test);
+
+        if (view != null) {
+          return view;
+        }
+      }
+
+      return null;
+    }
+
+    // Same traversal order as `findViews` but stops at the first match.
+    View findFirstView(View view, Func<View, Boolean> test) {
+      if (test.run(view)) {
+        return view;
+      }
+
+      if (view instanceof ViewGroup) {
+        ViewGroup viewGroup = (ViewGroup) view;
+
+        for (int i = 0; i < viewGroup.getChildCount(); ++i) {
+          final View found = findFirstView(viewGroup.getChildAt(i), test);
+
+          if (found != null) {
+            return found;
+          }
+        }
+      }
+
+      return null;
+    }
+
     List<View> findViews(View view, Func<View, Boolean>  test, List<View> foundViews) {
       if (test.run(view)) {
         foundViews.add(view);
@@ -981,6 +6339,119 @@ public class FasTest {
       return foundViews;
     }
 
+    // Finds views from every window (activities, dialogs, popups, toasts...) in a single pass.
+    // Windows are traversed topmost first and windows that are completely covered by an
+    // opaque window above them are skipped.
+    List<View> findViewsInWindows(Func<View, Boolean> test) {
+      final List<View> foundViews = new ArrayList<>();
+
+      for (View rootView : getVisibleRootViews()) {
+        findViews(rootView, test, foundViews);
+      }
+
+      return foundViews;
+    }
+
+    List<View> getVisibleRootViews() {
+      final List<View> rootViews = new ArrayList<>(getRootViews());
+      final List<View> visibleRootViews = new ArrayList<>();
+      final List<Rect> opaqueRects = new ArrayList<>();
+
+      // `rootViews` is in the order the windows were added. Reverse it so that the
+      // topmost window comes first and then make sure the window types are layered
+      // correctly. The sort is stable so the order inside a layer is preserved.
+      Collections.reverse(rootViews);
+      Collections.sort(rootViews, new Comparator<View>() {
+        @Override
+        public int compare(View left, View right) {
+          return windowLayer(right) - windowLayer(left);
+        }
+      });
+
+      for (View rootView : rootViews) {
+        if (rootView.getVisibility() != View.VISIBLE) {
+          continue;
+        }
+
+        // Windows of activities that are not resumed are either covered or going away.
+        if (currentActivity != null
+          && rootView.getContext() instanceof Activity
+          && rootView.getContext() != currentActivity) {
+          continue;
+        }
+
+        final Rect rect = ViewUtils.getViewRectOnScreen(rootView);
+
+        if (isCovered(rect, opaqueRects)) {
+          continue;
+        }
+
+        visibleRootViews.add(rootView);
+
+        if (isOpaqueWindow(rootView)) {
+          opaqueRects.add(rect);
+        }
+      }
+
+      return visibleRootViews;
+    }
+
+    static boolean isCovered(Rect rect, List<Rect> opaqueRects) {
+      for (Rect opaqueRect : opaqueRects) {
+        if (opaqueRect.contains(rect)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    static boolean isOpaqueWindow(View rootView) {
+      final ViewGroup.LayoutParams params = rootView.getLayoutParams();
+
+      if (!(params instanceof WindowManager.LayoutParams)) {
+        return false;
+      }
+
+      final WindowManager.LayoutParams windowParams = (WindowManager.LayoutParams) params;
+      return !PixelFormat.formatHasAlpha(windowParams.format);
+    }
+
+    static int windowLayer(View rootView) {
+      final int type = windowType(rootView);
+
+      if (type < 0) {
+        return 0;
+      } else if (type >= WindowManager.LayoutParams.FIRST_SYSTEM_WINDOW) {
+        return 2;
+      } else if (type >= WindowManager.LayoutParams.FIRST_SUB_WINDOW) {
+        return 1;
+      } else {
+        return 0;
+      }
+    }
+
+    // The `WindowManager.LayoutParams` type of a window or -1 if the root has no window params.
+    static int windowType(View rootView) {
+      final ViewGroup.LayoutParams params = rootView.getLayoutParams();
+      return params instanceof WindowManager.LayoutParams ? ((WindowManager.LayoutParams) params).type : -1;
+    }
+
+    // Describes the window of an element. `index` is the window's position among `windows`,
+    // the visible windows topmost first, or -1 if the window is no longer visible. `id` tells
+    // the windows apart for as long as they exist.
+    static JsonObject windowJson(View rootView, List<View> windows) {
+      final JsonObject window = JsonObject.newObject();
+      window.put("index", windows.indexOf(rootView));
+      window.put("type", windowType(rootView));
+      window.put("id", Integer.toHexString(System.identityHashCode(rootView)));
+      return window;
+    }
+
+    Activity getCurrentActivity() {
+      return currentActivity;
+    }
+
     View getRootView() {
       List<View> rootViews = getRootViews();
 
@@ -1041,7 +6512,7 @@ public class FasTest {
 
 
 
-  private static class ViewUtils {
+  static class ViewUtils {
 
     static void dispatchTouchEvent(View view,
                                    int action,
@@ -1071,6 +6542,17 @@ public class FasTest {
       event.recycle();
     }
 
+    static void dispatchKeyEvent(View view, KeyEvent event) {
+      final View rootView = view.getRootView();
+      final Context rootViewContext = rootView.getContext();
+
+      if (rootViewContext instanceof Activity) {
+        ((Activity) rootViewContext).dispatchKeyEvent(event);
+      } else {
+        rootView.dispatchKeyEvent(event);
+      }
+    }
+
     static boolean isVisible(View view) {
       return isVisible(view, getWindowRect(view));
     }
@@ -1106,6 +6588,14 @@ public class FasTest {
       return new Rect(loc[0], loc[1], loc[0] + view.getWidth(), loc[1] + view.getHeight());
     }
 
+    static Rect getViewRectOnScreen(View view) {
+      final int[] loc = new int[2];
+
+      view.getLocationOnScreen(loc);
+
+      return new Rect(loc[0], loc[1], loc[0] + view.getWidth(), loc[1] + view.getHeight());
+    }
+
     static Rect getWindowRect(View view) {
       final WindowManager wm = (WindowManager) view.getContext().getSystemService(Context.WINDOW_SERVICE);
 
@@ -1120,9 +6610,318 @@ public class FasTest {
 
 
 
+  private static class TextInput {
+    static final String MODE_BULK = "bulk";
+    static final String MODE_KEYS = "keys";
+    static final int DEFAULT_BATCH_SIZE = 16;
+
+    // W3C WebDriver special keys live in the private use area U+E000 - U+E05D. The right-hand
+    // navigation keys U+E054 - U+E05D type the same key codes as their left-hand versions.
+    private static final char FIRST_SPECIAL_KEY = '\uE000';
+    private static final char LAST_SPECIAL_KEY = '\uE05D';
+    private static final char KEY_NULL = '\uE000';
+    private static final char KEY_SHIFT = '\uE008';
+    private static final char KEY_CONTROL = '\uE009';
+    private static final char KEY_ALT = '\uE00A';
+    private static final char KEY_META = '\uE03D';
+    private static final char KEY_RIGHT_SHIFT = '\uE050';
+    private static final char KEY_RIGHT_CONTROL = '\uE051';
+    private static final char KEY_RIGHT_ALT = '\uE052';
+    private static final char KEY_RIGHT_META = '\uE053';
+    private static final int MODIFIER_FLAGS =
+      KeyEvent.META_SHIFT_ON | KeyEvent.META_CTRL_ON | KeyEvent.META_ALT_ON | KeyEvent.META_META_ON;
+
+    // Commits all plain text through the view's input connection inside one batch edit, the
+    // same way an IME does, so that text watchers and input filters see the change. Special
+    // keys are sent as key events through the same connection.
+    static void commitText(View view, String text, boolean append) {
+      final InputConnection ic = openInputConnection(view);
+      final StringBuilder run = new StringBuilder();
+      int metaState = 0;
+
+      ic.beginBatchEdit();
+
+      try {
+        prepareInput(ic, append);
+
+        for (int i = 0; i < text.length(); ++i) {
+          final char c = text.charAt(i);
+
+          if (isSpecialKey(c)) {
+            if (run.length() > 0) {
+              ic.commitText(run.toString(), 1);
+              run.setLength(0);
+            }
+
+            if (isModifierKey(c)) {
+              metaState = toggleModifier(metaState, c);
+            } else {
+              final int keyCode = keyCodeOf(c);
+              final long time = SystemClock.uptimeMillis();
+
+              ic.sendKeyEvent(new KeyEvent(time, time, KeyEvent.ACTION_DOWN, keyCode, 0, metaState));
+              ic.sendKeyEvent(new KeyEvent(time, time, KeyEvent.ACTION_UP, keyCode, 0, metaState));
+            }
+          } else {
+            run.append(c);
+          }
+        }
+
+        if (run.length() > 0) {
+          ic.commitText(run.toString(), 1);
+        }
+      } finally {
+        ic.endBatchEdit();
+      }
+    }
+
+    // Types the text as key events dispatched through the window like a hardware keyboard
+    // would. `batchSize` keys are dispatched per main thread message and `keyDelay`
+    // milliseconds are waited between the batches.
+    static void typeKeys(final TestContext ctx,
+                         final View view,
+                         final String text,
+                         final boolean append,
+                         final long keyDelay,
+                         final int batchSize,
+                         final Callback<Void> callback) {
+
+      final InputConnection ic = openInputConnection(view);
+      final List<Object> strokes = toStrokes(text);
+
+      ic.beginBatchEdit();
+      prepareInput(ic, append);
+      ic.endBatchEdit();
+
+      ctx.scheduler.post(ctx.timeline.wrap("type keys", new Runnable() {
+        private int index = 0;
+
+        @Override
+        public void run() {
+          try {
+            final int end = batchSize > 0 ? Math.min(index + batchSize, strokes.size()) : strokes.size();
+
+            for (; index < end; ++index) {
+              final Object stroke = strokes.get(index);
+
+              if (stroke instanceof KeyEvent) {
+                final long time = SystemClock.uptimeMillis();
+                ViewUtils.dispatchKeyEvent(view, KeyEvent.changeTimeRepeat((KeyEvent) stroke, time, 0));
+              } else {
+                ic.commitText((CharSequence) stroke, 1);
+              }
+            }
+          } catch (Throwable error) {
+            callback.done(error, null);
+            return;
+          }
+
+          if (index < strokes.size()) {
+            ctx.scheduler.postDelayed(ctx.timeline.wrap("type keys", this), keyDelay);
+          } else {
+            callback.done(null, null);
+          }
+        }
+      }));
+    }
+
+    // Converts the text into a list of key events. Characters that cannot be typed with
+    // the virtual keyboard's key map are committed as text instead.
+    static List<Object> toStrokes(String text) {
+      final KeyCharacterMap keyMap = KeyCharacterMap.load(KeyCharacterMap.VIRTUAL_KEYBOARD);
+      final List<Object> strokes = new ArrayList<>();
+      final char[] chars = new char[1];
+      int metaState = 0;
+
+      for (int i = 0; i < text.length(); ++i) {
+        final char c = text.charAt(i);
+
+        if (isSpecialKey(c)) {
+          if (isModifierKey(c)) {
+            metaState = toggleModifier(metaState, c);
+          } else {
+            final int keyCode = keyCodeOf(c);
+
+            strokes.add(new KeyEvent(0, 0, KeyEvent.ACTION_DOWN, keyCode, 0, metaState));
+            strokes.add(new KeyEvent(0, 0, KeyEvent.ACTION_UP, keyCode, 0, metaState));
+          }
+
+          continue;
+        }
+
+        chars[0] = c;
+        final KeyEvent[] events = keyMap.getEvents(chars);
+
+        if (events == null) {
+          strokes.add(String.valueOf(c));
+        } else if (metaState == 0) {
+          strokes.addAll(Arrays.asList(events));
+        } else {
+          for (KeyEvent event : events) {
+            strokes.add(KeyEvent.changeFlags(
+              new KeyEvent(0, 0, event.getAction(), event.getKeyCode(), 0, event.getMetaState() | metaState),
+              event.getFlags()
+            ));
+          }
+        }
+      }
+
+      return strokes;
+    }
+
+    static InputConnection openInputConnection(View view) {
+      if (!view.onCheckIsTextEditor()) {
+        throw new RuntimeException("element does not accept text input");
+      }
+
+      view.requestFocus();
+
+      final InputConnection ic = view.onCreateInputConnection(new EditorInfo());
+
+      if (ic == null) {
+        throw new RuntimeException("element does not accept text input");
+      }
+
+      return ic;
+    }
+
+    // Moves the cursor to the end of the current text when appending. Otherwise deletes
+    // the current text.
+    static void prepareInput(InputConnection ic, boolean append) {
+      final ExtractedText extracted = ic.getExtractedText(new ExtractedTextRequest(), 0);
+      final int length = extracted != null && extracted.text != null ? extracted.text.length() : 0;
+
+      if (append) {
+        ic.setSelection(length, length);
+      } else if (length > 0) {
+        ic.setSelection(0, length);
+        ic.commitText("", 1);
+      }
+    }
+
+    static boolean isSpecialKey(char c) {
+      return c >= FIRST_SPECIAL_KEY && c <= LAST_SPECIAL_KEY;
+    }
+
+    static boolean isModifierKey(char c) {
+      return c == KEY_NULL || c == KEY_SHIFT || c == KEY_CONTROL || c == KEY_ALT || c == KEY_META
+        || c == KEY_RIGHT_SHIFT || c == KEY_RIGHT_CONTROL || c == KEY_RIGHT_ALT || c == KEY_RIGHT_META;
+    }
+
+    // Modifier keys are sticky until pressed again or until the null key releases all of them.
+    static int toggleModifier(int metaState, char c) {
+      switch (c) {
+        case KEY_SHIFT: return toggleModifier(metaState, KeyEvent.META_SHIFT_LEFT_ON);
+        case KEY_CONTROL: return toggleModifier(metaState, KeyEvent.META_CTRL_LEFT_ON);
+        case KEY_ALT: return toggleModifier(metaState, KeyEvent.META_ALT_LEFT_ON);
+        case KEY_META: return toggleModifier(metaState, KeyEvent.META_META_LEFT_ON);
+        case KEY_RIGHT_SHIFT: return toggleModifier(metaState, KeyEvent.META_SHIFT_RIGHT_ON);
+        case KEY_RIGHT_CONTROL: return toggleModifier(metaState, KeyEvent.META_CTRL_RIGHT_ON);
+        case KEY_RIGHT_ALT: return toggleModifier(metaState, KeyEvent.META_ALT_RIGHT_ON);
+        case KEY_RIGHT_META: return toggleModifier(metaState, KeyEvent.META_META_RIGHT_ON);
+        default: return 0;
+      }
+    }
+
+    // Toggles one side of a modifier. The side-independent flag stays on while either side is.
+    static int toggleModifier(int metaState, int sideFlag) {
+      return KeyEvent.normalizeMetaState((metaState ^ sideFlag) & ~MODIFIER_FLAGS);
+    }
+
+    static int keyCodeOf(char c) {
+      switch (c) {
+        case '\uE001': return KeyEvent.KEYCODE_ESCAPE;
+        case '\uE003': return KeyEvent.KEYCODE_DEL;
+        case '\uE004': return KeyEvent.KEYCODE_TAB;
+        case '\uE005': return KeyEvent.KEYCODE_CLEAR;
+        case '\uE006': return KeyEvent.KEYCODE_ENTER;
+        case '\uE007': return KeyEvent.KEYCODE_ENTER;
+        case '\uE00B': return KeyEvent.KEYCODE_BREAK;
+        case '\uE00C': return KeyEvent.KEYCODE_ESCAPE;
+        case '\uE00D': return KeyEvent.KEYCODE_SPACE;
+        case '\uE00E': return KeyEvent.KEYCODE_PAGE_UP;
+        case '\uE00F': return KeyEvent.KEYCODE_PAGE_DOWN;
+        case '\uE010': return KeyEvent.KEYCODE_MOVE_END;
+        case '\uE011': return KeyEvent.KEYCODE_MOVE_HOME;
+        case '\uE012': return KeyEvent.KEYCODE_DPAD_LEFT;
+        case '\uE013': return KeyEvent.KEYCODE_DPAD_UP;
+        case '\uE014': return KeyEvent.KEYCODE_DPAD_RIGHT;
+        case '\uE015': return KeyEvent.KEYCODE_DPAD_DOWN;
+        case '\uE016': return KeyEvent.KEYCODE_INSERT;
+        case '\uE017': return KeyEvent.KEYCODE_FORWARD_DEL;
+        case '\uE018': return KeyEvent.KEYCODE_SEMICOLON;
+        case '\uE019': return KeyEvent.KEYCODE_EQUALS;
+        case '\uE024': return KeyEvent.KEYCODE_NUMPAD_MULTIPLY;
+        case '\uE025': return KeyEvent.KEYCODE_NUMPAD_ADD;
+        case '\uE026': return KeyEvent.KEYCODE_NUMPAD_COMMA;
+        case '\uE027': return KeyEvent.KEYCODE_NUMPAD_SUBTRACT;
+        case '\uE028': return KeyEvent.KEYCODE_NUMPAD_DOT;
+        case '\uE029': return KeyEvent.KEYCODE_NUMPAD_DIVIDE;
+        case '\uE054': return KeyEvent.KEYCODE_PAGE_UP;
+        case '\uE055': return KeyEvent.KEYCODE_PAGE_DOWN;
+        case '\uE056': return KeyEvent.KEYCODE_MOVE_END;
+        case '\uE057': return KeyEvent.KEYCODE_MOVE_HOME;
+        case '\uE058': return KeyEvent.KEYCODE_DPAD_LEFT;
+        case '\uE059': return KeyEvent.KEYCODE_DPAD_UP;
+        case '\uE05A': return KeyEvent.KEYCODE_DPAD_RIGHT;
+        case '\uE05B': return KeyEvent.KEYCODE_DPAD_DOWN;
+        case '\uE05C': return KeyEvent.KEYCODE_INSERT;
+        case '\uE05D': return KeyEvent.KEYCODE_FORWARD_DEL;
+        default: break;
+      }
+
+      if (c >= '\uE01A' && c <= '\uE023') {
+        return KeyEvent.KEYCODE_NUMPAD_0 + (c - '\uE01A');
+      }
+
+      if (c >= '\uE031' && c <= '\uE03C') {
+        return KeyEvent.KEYCODE_F1 + (c - '\uE031');
+      }
+
+      throw new RuntimeException(String.format("unsupported key U+%04X", (int) c));
+    }
+  }
+
+
+
+
   private static class AsyncUtils {
 
-    static <R> void poll(final Handler handler,
+    // Runs `task` in the main thread and blocks the calling thread until it's done.
+    static <R> R callInMainThread(TestContext ctx, String name, final Func<Void, R> task) throws Throwable {
+      final CountDownLatch latch = new CountDownLatch(1);
+      final Object[] result = new Object[1];
+      final Throwable[] error = new Throwable[1];
+      final Watchdog.Pending pending = ctx.watchdog.begin(name);
+
+      final Runnable posted = ctx.scheduler.post(ctx.timeline.wrap(name, new Runnable() {
+        @Override
+        public void run() {
+          pending.started();
+
+          try {
+            result[0] = task.run(null);
+          } catch (Throwable err) {
+            error[0] = err;
+          } finally {
+            latch.countDown();
+          }
+        }
+      }));
+
+      ctx.watchdog.await(latch, pending, posted, ctx.timeout + Watchdog.DEADLINE_MARGIN);
+
+      if (error[0] != null) {
+        throw error[0];
+      }
+
+      @SuppressWarnings("unchecked")
+      final R value = (R) result[0];
+      return value;
+    }
+
+    static <R> void poll(final TestContext ctx,
+                         final String name,
                          final long interval,
                          final long timeout,
                          final Func<Void, R> test,
@@ -1149,7 +6948,7 @@ public class FasTest {
           }
 
           if (result == null) {
-            handler.postDelayed(this, interval);
+            ctx.scheduler.postDelayed(ctx.timeline.wrap(name, this), interval);
           } else {
             callback.done(null, result);
           }
@@ -1158,6 +6957,105 @@ public class FasTest {
 
       runnable.run();
     }
+
+    // Like `poll` but the test is also run right after every layout pass in the window of
+    // `observedView`, so changes are noticed without waiting for the next poll. The callback
+    // gets null if the test didn't pass before the timeout.
+    static <R> void pollOnLayout(TestContext ctx,
+                                 String name,
+                                 long interval,
+                                 long timeout,
+                                 View observedView,
+                                 Func<Void, R> test,
+                                 Callback<R> callback) {
+
+      new LayoutPoll<>(ctx, name, interval, timeout, observedView, test, callback).start();
+    }
+
+    private static class LayoutPoll<R> implements Runnable, ViewTreeObserver.OnGlobalLayoutListener {
+      private final TestContext ctx;
+      private final String name;
+      private final long interval;
+      private final long timeout;
+      private final View observedView;
+      private final Func<Void, R> test;
+      private final Callback<R> callback;
+      private final long startTime = SystemClock.uptimeMillis();
+
+      private Runnable pending;
+      private boolean scheduled = false;
+      private boolean done = false;
+
+      LayoutPoll(TestContext ctx, String name, long interval, long timeout, View observedView, Func<Void, R> test, Callback<R> callback) {
+        this.ctx = ctx;
+        this.name = name;
+        this.interval = interval;
+        this.timeout = timeout;
+        this.observedView = observedView;
+        this.test = test;
+        this.callback = callback;
+      }
+
+      void start() {
+        run();
+
+        if (!done) {
+          observedView.getViewTreeObserver().addOnGlobalLayoutListener(this);
+        }
+      }
+
+      // Layout passes come in bursts so the checks they trigger are coalesced into one message.
+      @Override
+      public void onGlobalLayout() {
+        if (!scheduled && !done) {
+          scheduled = true;
+          ctx.scheduler.post(ctx.timeline.wrap(name, this));
+        }
+      }
+
+      @Override
+      public void run() {
+        scheduled = false;
+
+        if (done) {
+          return;
+        }
+
+        ctx.handler.removeCallbacks(pending);
+        R result;
+
+        try {
+          result = test.run(null);
+        } catch (Throwable error) {
+          finish(error, null);
+          return;
+        }
+
+        if (result != null) {
+          finish(null, result);
+        } else if (SystemClock.uptimeMillis() - startTime >= timeout) {
+          finish(null, null);
+        } else {
+          pending = ctx.scheduler.postDelayed(ctx.timeline.wrap(name, this), interval);
+        }
+      }
+
+      @SuppressWarnings("deprecation")
+      void finish(Throwable error, R result) {
+        done = true;
+        ctx.handler.removeCallbacks(pending);
+
+        // Observers die when the view is attached to or detached from a window and using a
+        // dead observer throws.
+        final ViewTreeObserver observer = observedView.getViewTreeObserver();
+
+        if (observer.isAlive()) {
+          observer.removeGlobalOnLayoutListener(this);
+        }
+
+        callback.done(error, result);
+      }
+    }
   }
 }
 
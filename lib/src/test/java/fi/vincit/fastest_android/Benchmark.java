@@ -0,0 +1,202 @@
+package fi.vincit.fastest_android;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Scanner;
+
+/**
+ * A small JMH-style harness for measuring the library's hot paths on a plain JVM.
+ *
+ * Each benchmark is warmed up and then run for a number of fixed length iterations. The
+ * throughput and the bytes allocated per operation are collected and written as JSON to
+ * `build/benchmarks/<suite>-<commit>.json` so that runs of different commits can be compared.
+ *
+ * Benchmarks are skipped unless the `fastest.benchmark` system property is set. Run them with
+ * `./gradlew :lib:testDebugUnitTest -Pbenchmark`.
+ */
+final class Benchmark {
+  static final String ENABLED_PROPERTY = "fastest.benchmark";
+  static final String OUTPUT_DIR_PROPERTY = "fastest.benchmark.dir";
+
+  private static final int WARMUP_ITERATIONS = 3;
+  private static final int MEASUREMENT_ITERATIONS = 5;
+  private static final long ITERATION_NANOS = 500L * 1000L * 1000L;
+  private static final int CHECK_TIME_EVERY = 16;
+
+  // Results are folded into this field so that the JIT can't eliminate the measured code.
+  private static volatile int blackhole;
+
+  private final List<Result> results = new ArrayList<>();
+
+  interface Op {
+    Object run();
+  }
+
+  static class Result {
+    final String name;
+    final double opsPerSecond;
+    final double opsPerSecondError;
+    final double bytesPerOp;
+
+    Result(String name, double opsPerSecond, double opsPerSecondError, double bytesPerOp) {
+      this.name = name;
+      this.opsPerSecond = opsPerSecond;
+      this.opsPerSecondError = opsPerSecondError;
+      this.bytesPerOp = bytesPerOp;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.US, "%-40s %14.1f +- %10.1f ops/s %12.1f B/op", name, opsPerSecond, opsPerSecondError, bytesPerOp);
+    }
+  }
+
+  static boolean isEnabled() {
+    return Boolean.getBoolean(ENABLED_PROPERTY);
+  }
+
+  Result run(String name, Op op) {
+    for (int i = 0; i < WARMUP_ITERATIONS; ++i) {
+      iteration(op);
+    }
+
+    final double[] opsPerSecond = new double[MEASUREMENT_ITERATIONS];
+    long totalOps = 0;
+    long totalBytes = 0;
+
+    for (int i = 0; i < MEASUREMENT_ITERATIONS; ++i) {
+      final long bytesBefore = allocatedBytes();
+      final long[] opsAndNanos = iteration(op);
+      final long bytesAfter = allocatedBytes();
+
+      opsPerSecond[i] = opsAndNanos[0] * 1e9 / opsAndNanos[1];
+      totalOps += opsAndNanos[0];
+      totalBytes += bytesAfter - bytesBefore;
+    }
+
+    final double mean = mean(opsPerSecond);
+    final double bytesPerOp = allocatedBytes() < 0 ? -1 : totalBytes / (double) totalOps;
+    final Result result = new Result(name, mean, stdDev(opsPerSecond, mean), bytesPerOp);
+
+    results.add(result);
+    System.out.println(result);
+
+    return result;
+  }
+
+  void save(String suite) throws Exception {
+    final File dir = new File(System.getProperty(OUTPUT_DIR_PROPERTY, "build/benchmarks"));
+    final String commit = gitCommit();
+
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new RuntimeException("could not create " + dir);
+    }
+
+    final StringBuilder json = new StringBuilder();
+    json.append("{\n");
+    json.append("  \"suite\": \"").append(suite).append("\",\n");
+    json.append("  \"commit\": \"").append(commit).append("\",\n");
+    json.append("  \"timestamp\": ").append(System.currentTimeMillis()).append(",\n");
+    json.append("  \"jvm\": \"").append(System.getProperty("java.vm.name")).append(' ').append(System.getProperty("java.version")).append("\",\n");
+    json.append("  \"results\": [\n");
+
+    for (int i = 0; i < results.size(); ++i) {
+      final Result result = results.get(i);
+      json.append(String.format(Locale.US,
+        "    {\"name\": \"%s\", \"opsPerSecond\": %.3f, \"opsPerSecondError\": %.3f, \"bytesPerOp\": %.3f}%s\n",
+        result.name,
+        result.opsPerSecond,
+        result.opsPerSecondError,
+        result.bytesPerOp,
+        i == results.size() - 1 ? "" : ","
+      ));
+    }
+
+    json.append("  ]\n");
+    json.append("}\n");
+
+    final File file = new File(dir, suite + "-" + commit + ".json");
+
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+      writer.write(json.toString());
+    }
+
+    System.out.println("benchmark results written to " + file.getAbsolutePath());
+  }
+
+  private static long[] iteration(Op op) {
+    final long start = System.nanoTime();
+    final long end = start + ITERATION_NANOS;
+    long ops = 0;
+    long now;
+    int hash = 0;
+
+    do {
+      for (int i = 0; i < CHECK_TIME_EVERY; ++i) {
+        final Object value = op.run();
+        hash += value == null ? 0 : System.identityHashCode(value);
+      }
+
+      ops += CHECK_TIME_EVERY;
+      now = System.nanoTime();
+    } while (now < end);
+
+    blackhole += hash;
+    return new long[] { ops, now - start };
+  }
+
+  private static long allocatedBytes() {
+    final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    } else {
+      return -1;
+    }
+  }
+
+  private static double mean(double[] values) {
+    double sum = 0;
+
+    for (double value : values) {
+      sum += value;
+    }
+
+    return sum / values.length;
+  }
+
+  private static double stdDev(double[] values, double mean) {
+    double sum = 0;
+
+    for (double value : values) {
+      sum += (value - mean) * (value - mean);
+    }
+
+    return Math.sqrt(sum / Math.max(1, values.length - 1));
+  }
+
+  static String gitCommit() {
+    try {
+      final Process process = new ProcessBuilder("git", "rev-parse", "--short", "HEAD").redirectErrorStream(true).start();
+      final InputStream in = process.getInputStream();
+      final Scanner scanner = new Scanner(in, "UTF-8").useDelimiter("\\A");
+      final String out = scanner.hasNext() ? scanner.next().trim() : "";
+
+      if (process.waitFor() == 0 && !out.isEmpty()) {
+        return out;
+      }
+    } catch (Throwable ignored) {
+      // Not in a git checkout.
+    }
+
+    return "unknown";
+  }
+}
@@ -0,0 +1,236 @@
+package fi.vincit.fastest_android;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.Button;
+import android.widget.LinearLayout;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes and reads {@link FasTest.CommandTrace} files and replays a recorded trace in a new
+ * test context, where none of the recorded element ids exist.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class CommandTraceTest {
+  private static final String ID_1 = "element-00000000-0000-0000-0000-000000000001";
+  private static final String ID_2 = "element-00000000-0000-0000-0000-000000000002";
+
+  private File file;
+  private ExecutorService serverThread;
+
+  @Before
+  public void setUp() throws Exception {
+    file = File.createTempFile("fastest-trace", ".bin");
+    serverThread = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    serverThread.shutdown();
+    file.delete();
+  }
+
+  @Test
+  public void writeAndRead() throws Exception {
+    final FasTest.CommandTrace trace = new FasTest.CommandTrace();
+    final long start = System.nanoTime();
+
+    trace.start(file);
+    trace.record("POST", "/session/s/elements", "{\"using\":\"xpath\"}", start, 1000000L, 200, 120,
+      Arrays.asList(ID_1, ID_2));
+    trace.record("POST", "/session/s/element/" + ID_1 + "/click", "", start + 5000000L, 2000000L, 500, 0,
+      Collections.<String>emptyList());
+    assertEquals(2, trace.stop());
+
+    final List<FasTest.CommandTrace.Record> records = FasTest.CommandTrace.read(file);
+    assertEquals(2, records.size());
+
+    final FasTest.CommandTrace.Record find = records.get(0);
+    assertEquals("POST", find.method);
+    assertEquals("/session/s/elements", find.uri);
+    assertEquals("{\"using\":\"xpath\"}", find.body);
+    assertEquals(1000000L, find.durationNanos);
+    assertEquals(200, find.status);
+    assertEquals(120, find.resultSize);
+    assertEquals(Arrays.asList(ID_1, ID_2), find.elementIds);
+
+    final FasTest.CommandTrace.Record click = records.get(1);
+    assertEquals("", click.body);
+    assertEquals(500, click.status);
+    assertTrue(click.startOffsetNanos > find.startOffsetNanos);
+    assertTrue(click.elementIds.isEmpty());
+  }
+
+  @Test
+  public void rejectOtherVersions() throws Exception {
+    final DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+
+    try {
+      out.writeInt(0x46545243);
+      out.writeInt(1);
+    } finally {
+      out.close();
+    }
+
+    try {
+      FasTest.CommandTrace.read(file);
+      fail("read a version 1 trace");
+    } catch (IOException expected) {
+      assertTrue(expected.getMessage().startsWith("not a trace file"));
+    }
+  }
+
+  @Test
+  public void elementIds() {
+    final String single = "{\"value\":" + element(ID_1) + "}";
+    final String list = "{\"value\":[" + element(ID_1) + "," + element(ID_2) + "]}";
+    final String wait = "{\"value\":{\"count\":1,\"element\":" + element(ID_2) + "}}";
+    final String text = "{\"value\":\"Save\"}";
+
+    assertEquals(Collections.singletonList(ID_1), elementIdsOf(single));
+    assertEquals(Arrays.asList(ID_1, ID_2), elementIdsOf(list));
+    assertEquals(Collections.singletonList(ID_2), elementIdsOf(wait));
+    assertTrue(elementIdsOf(text).isEmpty());
+
+    final Map<String, String> mapped = new HashMap<>();
+    FasTest.CommandTrace.mapElementIds(Arrays.asList(ID_1, ID_2), Collections.singletonList("element-new"), mapped);
+
+    assertEquals(
+      "/session/s/element/element-new/click",
+      FasTest.CommandTrace.remapElementIds("/session/s/element/" + ID_1 + "/click", mapped)
+    );
+
+    // Ids that weren't returned by the replay are left as they are.
+    assertEquals(
+      "{\"element\":\"" + ID_2 + "\"}",
+      FasTest.CommandTrace.remapElementIds("{\"element\":\"" + ID_2 + "\"}", mapped)
+    );
+  }
+
+  @Test
+  public void replayInNewContext() throws Exception {
+    final FasTest.Server recorder = newServer();
+    showButton();
+
+    final String path = "{\"path\":\"" + file.getAbsolutePath() + "\"}";
+    final String locator = "{\"using\":\"xpath\",\"value\":\"//android.widget.Button[@text='Save']\"}";
+
+    serve(recorder, "POST", "/session/a/fastest/trace/start", path);
+    final FasTest.JsonObject found = serve(recorder, "POST", "/session/a/element", locator);
+    final String recordedId = found.getJsonObject("value").getString("ELEMENT");
+    serve(recorder, "POST", "/session/a/element/" + recordedId + "/click", null);
+    serve(recorder, "POST", "/session/a/fastest/trace/stop", null);
+
+    final List<FasTest.CommandTrace.Record> records = FasTest.CommandTrace.read(file);
+    assertEquals(Collections.singletonList(recordedId), records.get(0).elementIds);
+
+    // A new context has its own element registry, so the recorded id is unknown to it and
+    // the click would fail with "no such element" if it wasn't remapped.
+    final FasTest.Server replayer = newServer();
+    showButton();
+
+    final FasTest.JsonObject replay = serve(replayer, "POST", "/session/b/fastest/trace/replay", path);
+    final FasTest.JsonObject value = replay.getJsonObject("value");
+    final FasTest.JsonObject click = value.getJsonArray("commands").getJsonObject(1);
+    final String replayedUri = click.getString("uri");
+
+    assertEquals(0, value.getInt("errors"));
+    assertEquals(200, click.getInt("status"));
+    assertFalse(replayedUri.contains(recordedId));
+    assertTrue(replayedUri.matches("/session/a/element/element-[0-9a-f-]+/click"));
+  }
+
+  private static FasTest.Server newServer() {
+    final Handler handler = new Handler(Looper.getMainLooper());
+    return new FasTest.Server(new FasTest.TestContext(RuntimeEnvironment.application, handler), 0);
+  }
+
+  private static String element(String id) {
+    return "{\"ELEMENT\":\"" + id + "\"}";
+  }
+
+  private static List<String> elementIdsOf(String result) {
+    return FasTest.CommandTrace.elementIdsOf(new FasTest.JsonObject(result));
+  }
+
+  private static void showButton() {
+    final Activity activity = Robolectric.setupActivity(Activity.class);
+    final LinearLayout root = new LinearLayout(activity);
+    final Button button = new Button(activity);
+
+    button.setText("Save");
+    root.addView(button);
+    activity.setContentView(root);
+    ShadowLooper.idleMainLooper();
+  }
+
+  // Serves a request through `ReplaySession.execute` so that it is recorded like a request
+  // from the network. The test thread is the main thread, so it runs the main thread tasks
+  // until the server thread is done.
+  private FasTest.JsonObject serve(FasTest.Server server, String method, String uri, String body) throws Exception {
+    final FasTest.ReplaySession session = new FasTest.ReplaySession(server, method, uri, body != null ? body : "");
+    final Future<NanoHTTPD.Response> response = serverThread.submit(new Callable<NanoHTTPD.Response>() {
+      @Override
+      public NanoHTTPD.Response call() throws Exception {
+        session.execute();
+        return session.getResponse();
+      }
+    });
+
+    while (!response.isDone()) {
+      ShadowLooper.idleMainLooper(5, TimeUnit.MILLISECONDS);
+      Thread.sleep(1);
+    }
+
+    ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+    assertEquals(uri, NanoHTTPD.Response.Status.OK, response.get().getStatus());
+    return new FasTest.JsonObject(read(response.get().getData()));
+  }
+
+  private static String read(InputStream in) throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[1024];
+    int count;
+
+    while ((count = in.read(buffer)) != -1) {
+      out.write(buffer, 0, count);
+    }
+
+    return out.toString("UTF-8");
+  }
+}
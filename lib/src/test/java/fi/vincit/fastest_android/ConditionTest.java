@@ -0,0 +1,140 @@
+package fi.vincit.fastest_android;
+
+import android.app.Application;
+import android.view.View;
+import android.widget.CheckBox;
+import android.widget.TextView;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Parses {@link FasTest.Condition}s and evaluates them against lists of matched views.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class ConditionTest {
+  private static final List<View> NONE = Collections.emptyList();
+
+  @Test
+  public void presentAndGone() {
+    final List<View> one = views(text("Done"));
+
+    assertTrue(holds("present", one));
+    assertFalse(holds("present", NONE));
+    assertTrue(holds("gone", NONE));
+    assertFalse(holds("gone", one));
+    assertTrue(holds("displayed", one));
+  }
+
+  @Test
+  public void count() {
+    final List<View> three = views(text("a"), text("b"), text("c"));
+
+    assertTrue(holds("count == 3", three));
+    assertTrue(holds("count != 2", three));
+    assertTrue(holds("count > 2", three));
+    assertTrue(holds("count >= 3", three));
+    assertTrue(holds("count < 4", three));
+    assertTrue(holds("count <= 3", three));
+    assertFalse(holds("count > 3", three));
+    assertTrue(holds("count == 0", NONE));
+    assertTrue(holds("count > -1", NONE));
+  }
+
+  @Test
+  public void text() {
+    final List<View> done = views(text("Done!"), text("Other"));
+
+    assertTrue(holds("text == 'Done!'", done));
+    assertTrue(holds("text == \"Done!\"", done));
+    assertTrue(holds("text != 'Other'", done));
+    assertTrue(holds("text contains 'one'", done));
+    assertTrue(holds("text matches '^D.*!$'", done));
+    assertFalse(holds("text matches '^O'", done));
+    assertFalse(holds("text == 'Done!'", NONE));
+  }
+
+  @Test
+  public void state() {
+    final TextView disabled = text("Disabled");
+    final CheckBox checked = new CheckBox(app());
+
+    disabled.setEnabled(false);
+    checked.setChecked(true);
+
+    assertTrue(holds("disabled", views(disabled)));
+    assertFalse(holds("enabled", views(disabled)));
+    assertTrue(holds("enabled", views(checked)));
+    assertTrue(holds("checked", views(checked)));
+    assertFalse(holds("checked", views(disabled)));
+    assertFalse(holds("selected", views(checked)));
+    assertFalse(holds("enabled", NONE));
+  }
+
+  @Test
+  public void clauses() {
+    final List<View> two = views(text("a && b"), text("c"));
+
+    assertTrue(holds("present && count == 2 && text == 'a && b'", two));
+    assertFalse(holds("present && count == 1", two));
+    assertEquals(Arrays.asList("text == 'x && y' ", " gone"), FasTest.Condition.splitClauses("text == 'x && y' && gone"));
+  }
+
+  @Test
+  public void invalidConditions() {
+    assertInvalid("", "invalid condition ");
+    assertInvalid("visible", "invalid condition visible");
+    assertInvalid("present == 1", "invalid condition present == 1");
+    assertInvalid("present &&", "invalid condition present &&");
+    assertInvalid("text = 'a'", "invalid condition text = 'a'");
+  }
+
+  @Test
+  public void invalidComparisons() {
+    assertInvalid("count", "count needs a numeric comparison in count");
+    assertInvalid("count == 'a'", "count needs a numeric comparison in count == 'a'");
+    assertInvalid("text", "text needs a string comparison in text");
+    assertInvalid("text > 'a'", "text needs a string comparison in text > 'a'");
+    assertInvalid("text == 1", "text needs a string comparison in text == 1");
+  }
+
+  private static boolean holds(String condition, List<View> views) {
+    return FasTest.Condition.parse(condition).holds(views);
+  }
+
+  private static void assertInvalid(String condition, String message) {
+    try {
+      FasTest.Condition.parse(condition);
+      fail("parsed " + condition);
+    } catch (RuntimeException error) {
+      assertEquals(message, error.getMessage());
+    }
+  }
+
+  private static TextView text(String text) {
+    final TextView view = new TextView(app());
+    view.setText(text);
+    return view;
+  }
+
+  private static List<View> views(View... views) {
+    return Arrays.asList(views);
+  }
+
+  private static Application app() {
+    return RuntimeEnvironment.application;
+  }
+}
@@ -0,0 +1,370 @@
+package fi.vincit.fastest_android;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.CheckBox;
+import android.widget.FrameLayout;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Benchmarks of the finder, locator and JSON hot paths against synthetic view hierarchies.
+ *
+ * @see Benchmark
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class HotPathBenchmark {
+  private static final int SCREEN_WIDTH = 1080;
+  private static final int SCREEN_HEIGHT = 1920;
+
+  private static final Benchmark benchmark = new Benchmark();
+
+  @BeforeClass
+  public static void checkEnabled() {
+    Assume.assumeTrue(Benchmark.isEnabled());
+  }
+
+  @AfterClass
+  public static void saveResults() throws Exception {
+    if (Benchmark.isEnabled()) {
+      benchmark.save("hot-paths");
+    }
+  }
+
+  @Test
+  public void findViews() {
+    final Application app = RuntimeEnvironment.application;
+    final FasTest.ViewFinder finder = new FasTest.ViewFinder(app);
+    final FasTest.Func<View, Boolean> isTextView = classTester(TextView.class);
+
+    final View wide = wideHierarchy(app, 5000);
+    final View deep = deepHierarchy(app, 100, 20);
+    final View list = listHierarchy(app, 500);
+
+    benchmark.run("ViewFinder.findViews wide(5000)", new Benchmark.Op() {
+      @Override
+      public Object run() {
+        return finder.findViews(wide, isTextView, new ArrayList<View>());
+      }
+    });
+
+    benchmark.run("ViewFinder.findViews deep(100x20)", new Benchmark.Op() {
+      @Override
+      public Object run() {
+        return finder.findViews(deep, isTextView, new ArrayList<View>());
+      }
+    });
+
+    benchmark.run("ViewFinder.findViews list(500 rows)", new Benchmark.Op() {
+      @Override
+      public Object run() {
+        return finder.findViews(list, isTextView, new ArrayList<View>());
+      }
+    });
+  }
+
+  @Test
+  public void findVisibleViews() {
+    final Application app = RuntimeEnvironment.application;
+    final FasTest.ViewFinder finder = new FasTest.ViewFinder(app);
+    final FasTest.Func<View, Boolean> isTextView = classTester(TextView.class);
+    final View list = listHierarchy(app, 500);
+    final Rect windowRect = FasTest.ViewUtils.getWindowRect(list);
+
+    benchmark.run("findViews+isVisible list(500 rows)", new Benchmark.Op() {
+      @Override
+      public Object run() {
+        return finder.findViews(list, new FasTest.Func<View, Boolean>() {
+          @Override
+          public Boolean run(View view) {
+            return isTextView.run(view) && FasTest.ViewUtils.isVisible(view, windowRect);
+          }
+        }, new ArrayList<View>());
+      }
+    });
+  }
+
+  @Test
+  public void snapshot() throws Exception {
+    final Application app = RuntimeEnvironment.application;
+    final FasTest.TestContext ctx = new FasTest.TestContext(app, new Handler(Looper.getMainLooper()));
+    final List<View> list = Collections.singletonList(listHierarchy(app, 500));
+    final Rect windowRect = FasTest.ViewUtils.getWindowRect(list.get(0));
+    final FasTest.HierarchySnapshot snapshot = FasTest.HierarchySnapshot.capture(list, windowRect);
+    final FasTest.Locator xpath = FasTest.Locator.compile(ctx, "xpath", "//android.widget.TextView[@text='Item 42']");
+
+    benchmark.run("HierarchySnapshot.capture list(500 rows)", new Benchmark.Op() {
+      @Override
+      public Object run() {
+        return FasTest.HierarchySnapshot.capture(list, windowRect);
+      }
+    });
+
+    benchmark.run("HierarchySnapshot.findVisible xpath list(500 rows)", new Benchmark.Op() {
+      @Override
+      public Object run() {
+        return snapshot.findVisible(xpath, 0, snapshot.size);
+      }
+    });
+
+    final List<View> wide = Collections.singletonList(wideHierarchy(app, 20000));
+    final FasTest.HierarchySnapshot wideSnapshot = FasTest.HierarchySnapshot.capture(wide, windowRect);
+
+    // Makes sure that the fixture is actually visible so that the locator is run for every node.
+    assertEquals(1, wideSnapshot.findVisible(xpath, 0).length);
+
+    benchmark.run("HierarchySnapshot.findVisible parallel wide(20000)", new Benchmark.Op() {
+      @Override
+      public Object run() {
+        try {
+          return wideSnapshot.findVisible(xpath, 0);
+        } catch (Exception error) {
+          throw new RuntimeException(error);
+        }
+      }
+    });
+  }
+
+  @Test
+  public void isVisible() {
+    final Application app = RuntimeEnvironment.application;
+    final View deep = deepHierarchy(app, 100, 20);
+    final View deepestLeaf = deepestLeaf(deep);
+    final Rect windowRect = FasTest.ViewUtils.getWindowRect(deep);
+
+    benchmark.run("ViewUtils.isVisible with window rect", new Benchmark.Op() {
+      @Override
+      public Object run() {
+        return FasTest.ViewUtils.isVisible(deepestLeaf, windowRect);
+      }
+    });
+
+    benchmark.run("ViewUtils.isVisible deepest leaf", new Benchmark.Op() {
+      @Override
+      public Object run() {
+        return FasTest.ViewUtils.isVisible(deepestLeaf);
+      }
+    });
+  }
+
+  @Test
+  public void findView() {
+    final Application app = RuntimeEnvironment.application;
+    final FasTest.TestContext ctx = new FasTest.TestContext(app, new Handler(Looper.getMainLooper()));
+    final Activity activity = Robolectric.setupActivity(Activity.class);
+    final LinearLayout content = new LinearLayout(activity);
+    final List<String> ids = new ArrayList<>();
+
+    // The views are attached so that the lookups take the live path instead of re-finding
+    // stale elements.
+    for (int i = 0; i < 5000; ++i) {
+      content.addView(new View(activity));
+    }
+
+    activity.setContentView(content);
+
+    for (int i = 0; i < content.getChildCount(); ++i) {
+      ids.add(ctx.registerView(content.getChildAt(i)));
+    }
+
+    assertEquals(content.getChildAt(0), ctx.findView(ids.get(0)));
+
+    benchmark.run("TestContext.findView (5000 cached)", new Benchmark.Op() {
+      private int i = 0;
+
+      @Override
+      public Object run() {
+        i = (i + 7919) % ids.size();
+        return ctx.findView(ids.get(i));
+      }
+    });
+  }
+
+  @Test
+  public void compileLocators() {
+    final Application app = RuntimeEnvironment.application;
+
+    benchmark.run("compile xpath locator", new Benchmark.Op() {
+      @Override
+      public Object run() {
+        return FasTest.Locator.createXPathTester("//android.widget.TextView[@text='Item 42']");
+      }
+    });
+
+    benchmark.run("compile class name locator", new Benchmark.Op() {
+      @Override
+      public Object run() {
+        return FasTest.Locator.createClassNameTester("android.widget.TextView");
+      }
+    });
+
+    benchmark.run("compile id locator", new Benchmark.Op() {
+      @Override
+      public Object run() {
+        return FasTest.Locator.createIdTester(app, "android:id/text1");
+      }
+    });
+
+    final FasTest.TestContext ctx = new FasTest.TestContext(app, new Handler(Looper.getMainLooper()));
+
+    benchmark.run("compile xpath locator (cached)", new Benchmark.Op() {
+      @Override
+      public Object run() {
+        return FasTest.Locator.compile(ctx, "xpath", "//android.widget.TextView[@text='Item 42']");
+      }
+    });
+  }
+
+  @Test
+  public void encodeJson() {
+    benchmark.run("JsonObject encode elements(500)", new Benchmark.Op() {
+      @Override
+      public Object run() {
+        final FasTest.JsonObject elements = FasTest.JsonObject.newArray();
+        final FasTest.JsonObject result = FasTest.JsonObject.newObject();
+
+        for (int i = 0; i < 500; ++i) {
+          final FasTest.JsonObject element = FasTest.JsonObject.newObject();
+          element.put("ELEMENT", "element-00000000-0000-0000-0000-" + i);
+          elements.add(element);
+        }
+
+        result.put("value", elements);
+        return result.toString();
+      }
+    });
+
+    final FasTest.JsonObject rect = FasTest.JsonObject.newObject();
+    final FasTest.JsonObject rectResult = FasTest.JsonObject.newObject();
+    rect.put("x", 10);
+    rect.put("y", 20);
+    rect.put("width", 300);
+    rect.put("height", 48);
+    rectResult.put("value", rect);
+
+    benchmark.run("JsonObject encode rect", new Benchmark.Op() {
+      @Override
+      public Object run() {
+        return rectResult.toString();
+      }
+    });
+  }
+
+  static FasTest.Func<View, Boolean> classTester(final Class<?> viewClass) {
+    return new FasTest.Func<View, Boolean>() {
+      @Override
+      public Boolean run(View view) {
+        return viewClass.isAssignableFrom(view.getClass());
+      }
+    };
+  }
+
+  // A single parent whose children are laid out in a grid that fills the screen, so that every
+  // child has real bounds and is visible.
+  static View wideHierarchy(Context context, int children) {
+    final FrameLayout root = new FrameLayout(context);
+    final int columns = (int) Math.ceil(Math.sqrt(children * (double) SCREEN_WIDTH / SCREEN_HEIGHT));
+    final int rows = (children + columns - 1) / columns;
+    final int cellWidth = SCREEN_WIDTH / columns;
+    final int cellHeight = SCREEN_HEIGHT / rows;
+
+    for (int i = 0; i < children; ++i) {
+      final TextView text = new TextView(context);
+      final FrameLayout.LayoutParams params = new FrameLayout.LayoutParams(cellWidth, cellHeight);
+
+      params.leftMargin = (i % columns) * cellWidth;
+      params.topMargin = (i / columns) * cellHeight;
+      text.setText("Item " + i);
+      root.addView(text, params);
+    }
+
+    return layout(root);
+  }
+
+  static View deepHierarchy(Context context, int depth, int leavesPerLevel) {
+    final FrameLayout root = new FrameLayout(context);
+    ViewGroup parent = root;
+
+    for (int i = 0; i < depth; ++i) {
+      for (int j = 0; j < leavesPerLevel; ++j) {
+        final TextView text = new TextView(context);
+        text.setText("Level " + i + " leaf " + j);
+        parent.addView(text);
+      }
+
+      final FrameLayout child = new FrameLayout(context);
+      parent.addView(child);
+      parent = child;
+    }
+
+    return layout(root);
+  }
+
+  static View listHierarchy(Context context, int rows) {
+    final LinearLayout root = new LinearLayout(context);
+    root.setOrientation(LinearLayout.VERTICAL);
+
+    for (int i = 0; i < rows; ++i) {
+      final LinearLayout row = new LinearLayout(context);
+      final LinearLayout texts = new LinearLayout(context);
+      final TextView title = new TextView(context);
+      final TextView subtitle = new TextView(context);
+
+      title.setText("Item " + i);
+      subtitle.setText("Description of item " + i);
+      texts.setOrientation(LinearLayout.VERTICAL);
+      texts.addView(title);
+      texts.addView(subtitle);
+
+      row.addView(new ImageView(context));
+      row.addView(texts);
+      row.addView(new CheckBox(context));
+      root.addView(row);
+    }
+
+    return layout(root);
+  }
+
+  static View deepestLeaf(View view) {
+    while (view instanceof ViewGroup && ((ViewGroup) view).getChildCount() > 0) {
+      final ViewGroup group = (ViewGroup) view;
+      view = group.getChildAt(group.getChildCount() - 1);
+    }
+
+    return view;
+  }
+
+  static View layout(View root) {
+    root.measure(
+      View.MeasureSpec.makeMeasureSpec(SCREEN_WIDTH, View.MeasureSpec.EXACTLY),
+      View.MeasureSpec.makeMeasureSpec(SCREEN_HEIGHT, View.MeasureSpec.EXACTLY)
+    );
+
+    root.layout(0, 0, SCREEN_WIDTH, SCREEN_HEIGHT);
+    return root;
+  }
+}
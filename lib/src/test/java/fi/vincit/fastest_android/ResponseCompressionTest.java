@@ -0,0 +1,101 @@
+package fi.vincit.fastest_android;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that {@link FasTest.ResponseCompression} output inflates back to the original body
+ * with the JDK's own gzip and zlib streams.
+ */
+public class ResponseCompressionTest {
+
+  @Test
+  public void gzipRoundTrip() throws IOException {
+    final byte[] body = body(100000);
+    final InputStream compressed = FasTest.ResponseCompression.compress(body, FasTest.ResponseCompression.GZIP);
+    assertArrayEquals(body, readAll(new GZIPInputStream(compressed)));
+  }
+
+  @Test
+  public void deflateRoundTrip() throws IOException {
+    final byte[] body = body(100000);
+    final InputStream compressed = FasTest.ResponseCompression.compress(body, FasTest.ResponseCompression.DEFLATE);
+    assertArrayEquals(body, readAll(new InflaterInputStream(compressed)));
+  }
+
+  @Test
+  public void emptyBodyRoundTrip() throws IOException {
+    final InputStream compressed = FasTest.ResponseCompression.compress(new byte[0], FasTest.ResponseCompression.GZIP);
+    assertEquals(0, readAll(new GZIPInputStream(compressed)).length);
+  }
+
+  // Closed streams put their deflaters back to the pool. The reused deflaters must still work.
+  @Test
+  public void pooledDeflatersAreReusable() throws IOException {
+    for (int i = 0; i < 20; ++i) {
+      final byte[] body = body(5000 + i * 1000);
+      final String encoding = i % 2 == 0 ? FasTest.ResponseCompression.GZIP : FasTest.ResponseCompression.DEFLATE;
+      final InputStream compressed = FasTest.ResponseCompression.compress(body, encoding);
+      final InputStream inflated = i % 2 == 0 ? new GZIPInputStream(compressed) : new InflaterInputStream(compressed);
+
+      assertArrayEquals(body, readAll(inflated));
+      inflated.close();
+    }
+  }
+
+  @Test
+  public void negotiate() {
+    assertNull(FasTest.ResponseCompression.negotiate(null));
+    assertNull(FasTest.ResponseCompression.negotiate("identity"));
+    assertEquals("gzip", FasTest.ResponseCompression.negotiate("gzip"));
+    assertEquals("gzip", FasTest.ResponseCompression.negotiate("deflate, GZIP;q=0.5"));
+    assertEquals("deflate", FasTest.ResponseCompression.negotiate("deflate"));
+    assertEquals("deflate", FasTest.ResponseCompression.negotiate("gzip;q=0, deflate"));
+    assertNull(FasTest.ResponseCompression.negotiate("gzip; q=0.0, deflate;q=0"));
+  }
+
+  @Test
+  public void smallBodiesAreNotCompressed() {
+    final int min = FasTest.ResponseCompression.MIN_BYTES;
+
+    assertNull(FasTest.ResponseCompression.encodingFor("gzip", 0));
+    assertNull(FasTest.ResponseCompression.encodingFor("gzip", min - 1));
+    assertEquals("gzip", FasTest.ResponseCompression.encodingFor("gzip", min));
+    assertNull(FasTest.ResponseCompression.encodingFor(null, min));
+  }
+
+  // JSON-like text that compresses but isn't just one repeated byte.
+  private static byte[] body(int length) {
+    final Random random = new Random(length);
+    final byte[] bytes = new byte[length];
+    final String alphabet = "{}[]\":,abcdefghijklmnopqrstuvwxyz0123456789";
+
+    for (int i = 0; i < length; ++i) {
+      bytes[i] = (byte) alphabet.charAt(random.nextInt(alphabet.length()));
+    }
+
+    return bytes;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[1000];
+    int count;
+
+    while ((count = in.read(buffer)) != -1) {
+      out.write(buffer, 0, count);
+    }
+
+    return out.toByteArray();
+  }
+}
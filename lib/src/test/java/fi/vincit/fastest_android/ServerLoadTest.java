@@ -0,0 +1,390 @@
+package fi.vincit.fastest_android;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Drives the command server with a mixed workload from many client threads.
+ *
+ * The server runs on a loopback port and the test thread pumps Robolectric's main looper so
+ * the commands are executed the same way as on a device. Throughput, p50/p99 latencies and
+ * error rates per command are printed and written to `build/benchmarks/load-<commit>.json`.
+ * Exceptions logged by the server are inspected to detect races, like concurrent
+ * modification of the element cache.
+ *
+ * The test is skipped unless the build is run with `-Ploadtest`.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class ServerLoadTest {
+  static final String ENABLED_PROPERTY = "fastest.loadtest";
+
+  private static final int CLIENTS = Integer.getInteger("fastest.loadtest.clients", 16);
+  private static final long DURATION_MILLIS = Long.getLong("fastest.loadtest.duration", 10000L);
+  private static final int ROWS = 100;
+  private static final Pattern ELEMENT_PATTERN = Pattern.compile("\"ELEMENT\":\"([^\"]+)\"");
+
+  @Test
+  public void mixedWorkload() throws Exception {
+    Assume.assumeTrue(Boolean.getBoolean(ENABLED_PROPERTY));
+
+    final Application app = RuntimeEnvironment.application;
+    final FasTest.TestContext ctx = new FasTest.TestContext(app, new Handler(Looper.getMainLooper()));
+    final FasTest.Server server = new FasTest.Server(ctx, 0);
+    final Activity activity = Robolectric.setupActivity(Activity.class);
+
+    activity.setContentView(listLayout(activity));
+    ShadowLooper.idleMainLooper();
+    ShadowLog.reset();
+
+    server.start(NanoHTTPD.SOCKET_READ_TIMEOUT, true);
+
+    final String baseUrl = "http://127.0.0.1:" + server.getListeningPort() + "/session/load";
+    final long deadline = System.currentTimeMillis() + DURATION_MILLIS;
+    final List<Client> clients = new ArrayList<>();
+
+    for (int i = 0; i < CLIENTS; ++i) {
+      final Client client = new Client(baseUrl, deadline, i);
+      clients.add(client);
+      client.start();
+    }
+
+    // The test thread is Robolectric's main thread. Run the tasks the server posts to
+    // the main looper until all the clients are done.
+    while (anyAlive(clients)) {
+      ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+      Thread.yield();
+    }
+
+    server.stop();
+
+    final Report report = new Report(clients, DURATION_MILLIS);
+    report.print();
+    report.save();
+
+    assertEquals("concurrent modifications detected", 0, report.concurrentModifications);
+    assertEquals("requests failed", 0, report.totalErrors);
+  }
+
+  static LinearLayout listLayout(Activity activity) {
+    final LinearLayout root = new LinearLayout(activity);
+    root.setOrientation(LinearLayout.VERTICAL);
+
+    for (int i = 0; i < ROWS; ++i) {
+      final TextView title = new TextView(activity);
+      title.setId(android.R.id.text1);
+      title.setText("Item " + i);
+      root.addView(title);
+    }
+
+    return root;
+  }
+
+  static boolean anyAlive(List<? extends Thread> threads) {
+    for (Thread thread : threads) {
+      if (thread.isAlive()) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  static class Client extends Thread {
+    final String baseUrl;
+    final long deadline;
+    final Random random;
+    final Map<String, List<Long>> latencies = new TreeMap<>();
+    final Map<String, Integer> errors = new TreeMap<>();
+    final List<String> elementIds = new ArrayList<>();
+
+    Client(String baseUrl, long deadline, int index) {
+      super("load-client-" + index);
+      this.baseUrl = baseUrl;
+      this.deadline = deadline;
+      this.random = new Random(index);
+    }
+
+    @Override
+    public void run() {
+      findElements("id", "android:id/text1");
+
+      while (System.currentTimeMillis() < deadline) {
+        final int dice = random.nextInt(100);
+
+        if (dice < 15) {
+          findElements("id", "android:id/text1");
+        } else if (dice < 20) {
+          findElements("class name", "android.widget.TextView");
+        } else if (dice < 80 && !elementIds.isEmpty()) {
+          final String[] properties = { "displayed", "enabled", "rect", "text" };
+          final String property = properties[random.nextInt(properties.length)];
+          final String id = elementIds.get(random.nextInt(elementIds.size()));
+          request("GET " + property, "GET", "/element/" + id + "/" + property, null);
+        } else if (dice < 90) {
+          request("GET window/rect", "GET", "/window/rect", null);
+        } else if (dice < 95) {
+          request("POST implicit_wait", "POST", "/timeouts/implicit_wait", "{\"ms\":10000}");
+        } else {
+          request("POST session", "POST", "/session", "{}");
+        }
+      }
+    }
+
+    void findElements(String using, String value) {
+      final String body = request("POST elements (" + using + ")", "POST", "/elements", "{\"using\":\"" + using + "\",\"value\":\"" + value + "\"}");
+
+      if (body != null && elementIds.isEmpty()) {
+        final Matcher matcher = ELEMENT_PATTERN.matcher(body);
+
+        while (matcher.find()) {
+          elementIds.add(matcher.group(1));
+        }
+      }
+    }
+
+    String request(String name, String method, String path, String body) {
+      final long start = System.nanoTime();
+      String response = null;
+      boolean ok;
+
+      try {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+
+        if (body != null) {
+          final byte[] bytes = body.getBytes("UTF-8");
+          connection.setDoOutput(true);
+          connection.setFixedLengthStreamingMode(bytes.length);
+
+          try (OutputStream out = connection.getOutputStream()) {
+            out.write(bytes);
+          }
+        }
+
+        final int status = connection.getResponseCode();
+        ok = status == HttpURLConnection.HTTP_OK;
+
+        try (InputStream in = ok ? connection.getInputStream() : connection.getErrorStream()) {
+          response = readFully(in);
+        }
+      } catch (IOException error) {
+        ok = false;
+      }
+
+      final long nanos = System.nanoTime() - start;
+      List<Long> samples = latencies.get(name);
+
+      if (samples == null) {
+        samples = new ArrayList<>();
+        latencies.put(name, samples);
+      }
+
+      samples.add(nanos);
+
+      if (!ok) {
+        final Integer count = errors.get(name);
+        errors.put(name, count == null ? 1 : count + 1);
+      }
+
+      return ok ? response : null;
+    }
+
+    static String readFully(InputStream in) throws IOException {
+      if (in == null) {
+        return "";
+      }
+
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[4096];
+      int read;
+
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+
+      return out.toString("UTF-8");
+    }
+  }
+
+  static class Report {
+    final long durationMillis;
+    final Map<String, List<Long>> latencies = new TreeMap<>();
+    final Map<String, Integer> errors = new TreeMap<>();
+    final Map<String, Integer> serverExceptions = new TreeMap<>();
+    long totalRequests;
+    long totalErrors;
+    int concurrentModifications;
+
+    Report(List<Client> clients, long durationMillis) {
+      this.durationMillis = durationMillis;
+
+      for (Client client : clients) {
+        for (Map.Entry<String, List<Long>> entry : client.latencies.entrySet()) {
+          if (!latencies.containsKey(entry.getKey())) {
+            latencies.put(entry.getKey(), new ArrayList<Long>());
+          }
+
+          latencies.get(entry.getKey()).addAll(entry.getValue());
+          totalRequests += entry.getValue().size();
+        }
+
+        for (Map.Entry<String, Integer> entry : client.errors.entrySet()) {
+          final Integer count = errors.get(entry.getKey());
+          errors.put(entry.getKey(), (count == null ? 0 : count) + entry.getValue());
+          totalErrors += entry.getValue();
+        }
+      }
+
+      for (List<Long> samples : latencies.values()) {
+        Collections.sort(samples);
+      }
+
+      for (ShadowLog.LogItem item : ShadowLog.getLogsForTag("FasTest")) {
+        if (item.throwable != null) {
+          final String name = item.throwable.getClass().getName();
+          final Integer count = serverExceptions.get(name);
+          serverExceptions.put(name, count == null ? 1 : count + 1);
+
+          if (hasCause(item.throwable, ConcurrentModificationException.class)) {
+            ++concurrentModifications;
+          }
+        }
+      }
+    }
+
+    void print() {
+      System.out.println(String.format(Locale.US, "%d clients, %d requests in %d ms, %.1f req/s, error rate %.4f",
+        CLIENTS, totalRequests, durationMillis, throughput(), errorRate()));
+
+      for (Map.Entry<String, List<Long>> entry : latencies.entrySet()) {
+        System.out.println(String.format(Locale.US, "%-28s %8d requests %6d errors  p50 %8.2f ms  p99 %8.2f ms",
+          entry.getKey(),
+          entry.getValue().size(),
+          errorCount(entry.getKey()),
+          percentileMillis(entry.getValue(), 0.50),
+          percentileMillis(entry.getValue(), 0.99)));
+      }
+
+      for (Map.Entry<String, Integer> entry : serverExceptions.entrySet()) {
+        System.out.println("server exception " + entry.getKey() + " x " + entry.getValue());
+      }
+    }
+
+    void save() throws IOException {
+      final File dir = new File(System.getProperty(Benchmark.OUTPUT_DIR_PROPERTY, "build/benchmarks"));
+
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("could not create " + dir);
+      }
+
+      final StringBuilder json = new StringBuilder();
+      json.append("{\n");
+      json.append("  \"commit\": \"").append(Benchmark.gitCommit()).append("\",\n");
+      json.append("  \"timestamp\": ").append(System.currentTimeMillis()).append(",\n");
+      json.append("  \"clients\": ").append(CLIENTS).append(",\n");
+      json.append("  \"durationMillis\": ").append(durationMillis).append(",\n");
+      json.append("  \"requests\": ").append(totalRequests).append(",\n");
+      json.append(String.format(Locale.US, "  \"requestsPerSecond\": %.3f,\n", throughput()));
+      json.append(String.format(Locale.US, "  \"errorRate\": %.6f,\n", errorRate()));
+      json.append("  \"concurrentModifications\": ").append(concurrentModifications).append(",\n");
+      json.append("  \"commands\": [\n");
+
+      int i = 0;
+      for (Map.Entry<String, List<Long>> entry : latencies.entrySet()) {
+        json.append(String.format(Locale.US,
+          "    {\"name\": \"%s\", \"requests\": %d, \"errors\": %d, \"p50Millis\": %.3f, \"p99Millis\": %.3f}%s\n",
+          entry.getKey(),
+          entry.getValue().size(),
+          errorCount(entry.getKey()),
+          percentileMillis(entry.getValue(), 0.50),
+          percentileMillis(entry.getValue(), 0.99),
+          ++i == latencies.size() ? "" : ","));
+      }
+
+      json.append("  ]\n");
+      json.append("}\n");
+
+      final File file = new File(dir, "load-" + Benchmark.gitCommit() + ".json");
+
+      try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+        writer.write(json.toString());
+      }
+
+      System.out.println("load test results written to " + file.getAbsolutePath());
+    }
+
+    double throughput() {
+      return totalRequests * 1000.0 / durationMillis;
+    }
+
+    double errorRate() {
+      return totalRequests == 0 ? 0 : totalErrors / (double) totalRequests;
+    }
+
+    int errorCount(String name) {
+      final Integer count = errors.get(name);
+      return count == null ? 0 : count;
+    }
+
+    static double percentileMillis(List<Long> sortedNanos, double percentile) {
+      if (sortedNanos.isEmpty()) {
+        return 0;
+      }
+
+      final int index = (int) Math.ceil(percentile * sortedNanos.size()) - 1;
+      return sortedNanos.get(Math.max(0, index)) / 1e6;
+    }
+
+    static boolean hasCause(Throwable error, Class<? extends Throwable> type) {
+      while (error != null) {
+        if (type.isInstance(error)) {
+          return true;
+        }
+
+        error = error.getCause();
+      }
+
+      return false;
+    }
+  }
+}
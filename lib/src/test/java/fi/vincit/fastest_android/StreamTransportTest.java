@@ -0,0 +1,246 @@
+package fi.vincit.fastest_android;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import fi.iki.elonen.NanoHTTPD;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs HTTP through a {@link FasTest.StreamTransport} over a unix domain socket on the host JVM.
+ *
+ * On the device the transport binds an abstract-namespace socket with `LocalServerSocket`. Here
+ * the acceptor is backed by a JDK unix domain socket channel instead, so the test is skipped on
+ * JVMs older than 16.
+ */
+public class StreamTransportTest {
+  private static final int ROUND_TRIPS = 2000;
+
+  private File socketFile;
+  private NanoHTTPD server;
+
+  @Before
+  public void setUp() throws Exception {
+    Assume.assumeTrue(unixSocketsSupported());
+
+    socketFile = File.createTempFile("fastest", ".sock");
+    socketFile.delete();
+
+    server = new NanoHTTPD(0) {
+      @Override
+      public Response serve(IHTTPSession session) {
+        return newFixedLengthResponse(Response.Status.OK, "application/json", "{\"value\":\"" + session.getUri() + "\"}");
+      }
+    };
+
+    server.setServerSocketFactory(new FasTest.StreamTransport("test", new FasTest.StreamTransport.Binder() {
+      @Override
+      public FasTest.StreamTransport.Acceptor bind() throws IOException {
+        return unixAcceptor(socketFile);
+      }
+    }));
+
+    server.start(NanoHTTPD.SOCKET_READ_TIMEOUT, true);
+  }
+
+  @After
+  public void tearDown() {
+    if (server != null) {
+      server.stop();
+    }
+
+    if (socketFile != null) {
+      socketFile.delete();
+    }
+  }
+
+  @Test
+  public void servesRequest() throws Exception {
+    final SocketChannel channel = connect(socketFile);
+
+    try {
+      final String response = roundTrip(channel, "/status");
+
+      assertTrue(response, response.startsWith("HTTP/1.1 200"));
+      assertTrue(response, response.endsWith("{\"value\":\"/status\"}"));
+    } finally {
+      channel.close();
+    }
+  }
+
+  @Test
+  public void keepsConnectionAlive() throws Exception {
+    final SocketChannel channel = connect(socketFile);
+    final long start = System.nanoTime();
+
+    try {
+      for (int i = 0; i < ROUND_TRIPS; ++i) {
+        final String response = roundTrip(channel, "/session/s/element/" + i + "/text");
+        assertTrue(response, response.endsWith("{\"value\":\"/session/s/element/" + i + "/text\"}"));
+      }
+    } finally {
+      channel.close();
+    }
+
+    System.out.println(String.format("unix socket round trip: %.1f us", (System.nanoTime() - start) / 1000.0 / ROUND_TRIPS));
+  }
+
+  @Test
+  public void stopsAccepting() throws Exception {
+    server.stop();
+    server = null;
+
+    Thread.sleep(100);
+    assertEquals(false, unixSocketAccepts(socketFile));
+  }
+
+  static String roundTrip(SocketChannel channel, String uri) throws IOException {
+    final OutputStream out = Channels.newOutputStream(channel);
+    final InputStream in = Channels.newInputStream(channel);
+
+    out.write(("GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes("UTF-8"));
+    out.flush();
+
+    final StringBuilder head = new StringBuilder();
+
+    while (!head.toString().endsWith("\r\n\r\n")) {
+      final int c = in.read();
+
+      if (c < 0) {
+        throw new IOException("connection closed");
+      }
+
+      head.append((char) c);
+    }
+
+    final String lowerHead = head.toString().toLowerCase();
+    final int lengthStart = lowerHead.indexOf("content-length: ") + "content-length: ".length();
+    final int length = Integer.parseInt(lowerHead.substring(lengthStart, lowerHead.indexOf("\r\n", lengthStart)).trim());
+    final byte[] body = new byte[length];
+
+    for (int read = 0; read < length; ) {
+      final int n = in.read(body, read, length - read);
+
+      if (n < 0) {
+        throw new IOException("connection closed");
+      }
+
+      read += n;
+    }
+
+    return head + new String(body, "UTF-8");
+  }
+
+  // The JDK unix domain socket API is only available from Java 16 on and the unit tests are
+  // compiled for older JVMs, so it's used through reflection.
+
+  static boolean unixSocketsSupported() {
+    try {
+      Class.forName("java.net.UnixDomainSocketAddress");
+      return true;
+    } catch (ClassNotFoundException error) {
+      return false;
+    }
+  }
+
+  static SocketAddress unixAddress(File file) throws IOException {
+    try {
+      return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+        .getMethod("of", String.class)
+        .invoke(null, file.getAbsolutePath());
+    } catch (Exception error) {
+      throw new IOException(error);
+    }
+  }
+
+  static ProtocolFamily unixFamily() {
+    return StandardProtocolFamily.valueOf("UNIX");
+  }
+
+  static SocketChannel connect(File file) throws IOException {
+    try {
+      final SocketChannel channel = (SocketChannel) SocketChannel.class
+        .getMethod("open", ProtocolFamily.class)
+        .invoke(null, unixFamily());
+
+      channel.connect(unixAddress(file));
+      return channel;
+    } catch (IOException error) {
+      throw error;
+    } catch (Exception error) {
+      throw new IOException(error);
+    }
+  }
+
+  static boolean unixSocketAccepts(File file) {
+    try {
+      connect(file).close();
+      return true;
+    } catch (IOException error) {
+      return false;
+    }
+  }
+
+  static FasTest.StreamTransport.Acceptor unixAcceptor(final File file) throws IOException {
+    final ServerSocketChannel serverChannel;
+
+    try {
+      serverChannel = (ServerSocketChannel) ServerSocketChannel.class
+        .getMethod("open", ProtocolFamily.class)
+        .invoke(null, unixFamily());
+    } catch (Exception error) {
+      throw new IOException(error);
+    }
+
+    serverChannel.bind(unixAddress(file));
+
+    return new FasTest.StreamTransport.Acceptor() {
+      @Override
+      public FasTest.StreamTransport.Connection accept() throws IOException {
+        final SocketChannel channel = serverChannel.accept();
+
+        return new FasTest.StreamTransport.Connection() {
+          @Override
+          public InputStream getInputStream() {
+            return Channels.newInputStream(channel);
+          }
+
+          @Override
+          public OutputStream getOutputStream() {
+            return Channels.newOutputStream(channel);
+          }
+
+          // Blocking channels don't support read timeouts.
+          @Override
+          public void setSoTimeout(int timeout) {}
+
+          @Override
+          public void close() throws IOException {
+            channel.close();
+          }
+        };
+      }
+
+      @Override
+      public void close() throws IOException {
+        serverChannel.close();
+        file.delete();
+      }
+    };
+  }
+}
@@ -0,0 +1,155 @@
+package fi.vincit.fastest_android;
+
+import android.app.Application;
+import android.graphics.Rect;
+import android.view.View;
+import android.widget.Button;
+import android.widget.LinearLayout;
+import android.widget.TextView;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Evaluates {@link FasTest.XPath} expressions against live views and against snapshots of them.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class XPathTest {
+  private LinearLayout root;
+  private LinearLayout form;
+  private TextView nameLabel;
+  private TextView name;
+  private TextView emailLabel;
+  private TextView email;
+  private Button save;
+  private Button cancel;
+
+  @Before
+  public void setUp() {
+    root = new LinearLayout(app());
+    form = new LinearLayout(app());
+    nameLabel = text("Name");
+    name = text("Alice");
+    emailLabel = text("Email");
+    email = text("alice@example.com");
+    save = new Button(app());
+    cancel = new Button(app());
+
+    save.setText("Save");
+    cancel.setText("Cancel");
+    cancel.setEnabled(false);
+
+    form.addView(nameLabel);
+    form.addView(name);
+    form.addView(emailLabel);
+    form.addView(email);
+    root.addView(form);
+    root.addView(save);
+    root.addView(cancel);
+  }
+
+  @Test
+  public void attributes() {
+    assertMatches("//android.widget.TextView[@text='Alice']", name);
+    assertMatches("//android.widget.Button[@enabled='false']", cancel);
+    assertMatches("//*[@text=\"Save\"][@enabled='true']", save);
+    assertMatches("//android.widget.Button[@text='Nope']");
+  }
+
+  @Test
+  public void paths() {
+    assertMatches("/android.widget.LinearLayout", root);
+    assertMatches("/android.widget.LinearLayout/android.widget.Button", save, cancel);
+    assertMatches("//android.widget.LinearLayout/android.widget.LinearLayout/*", nameLabel, name, emailLabel, email);
+    assertMatches("/android.widget.LinearLayout//android.widget.TextView[@text='Email']", emailLabel);
+    assertMatches("/android.widget.TextView");
+  }
+
+  @Test
+  public void positions() {
+    assertMatches("//android.widget.LinearLayout/android.widget.TextView[2]", name, cancel);
+    assertMatches("/android.widget.LinearLayout/android.widget.Button[2]", cancel);
+    assertMatches("/*/android.widget.Button[@enabled='true'][1]", save);
+    assertMatches("/*/android.widget.Button[1][@enabled='false']");
+    assertMatches("/*/*[5]");
+  }
+
+  @Test
+  public void siblings() {
+    assertMatches("//*[@text='Name']/following-sibling::*[1]", name);
+    assertMatches("//*[@text='Email']/following-sibling::android.widget.TextView", email);
+    assertMatches("//*[@text='Email']/preceding-sibling::*", nameLabel, name);
+    assertMatches("//*[@text='alice@example.com']/preceding-sibling::*[2]", name);
+    assertMatches("//*[@text='Save']/following-sibling::*[@text='Cancel']", cancel);
+    assertMatches("//*[@text='Name']/following-sibling::*[1]/following-sibling::*[2]", email);
+  }
+
+  @Test
+  public void invalidExpressions() {
+    assertInvalid("");
+    assertInvalid("android.widget.TextView");
+    assertInvalid("//android.widget.TextView[contains(@text, 'a')]");
+    assertInvalid("//android.widget.TextView[@id='a']");
+    assertInvalid("//android.widget.TextView[0]");
+    assertInvalid("/following-sibling::android.widget.TextView");
+    assertInvalid("//*//following-sibling::*");
+    assertInvalid("//*/parent::*");
+  }
+
+  private void assertMatches(String xpath, View... expected) {
+    final FasTest.Func<View, Boolean> tester = FasTest.XPath.parse(xpath).viewTester();
+    final FasTest.HierarchySnapshot.NodeTester nodeTester = FasTest.XPath.parse(xpath).nodeTester();
+    final FasTest.HierarchySnapshot snapshot = FasTest.HierarchySnapshot.capture(
+      Collections.<View>singletonList(root),
+      new Rect(0, 0, 1000, 1000)
+    );
+
+    final List<View> viewMatches = new ArrayList<>();
+    final List<View> nodeMatches = new ArrayList<>();
+
+    for (int node = 0; node < snapshot.size; ++node) {
+      if (tester.run(snapshot.views[node])) {
+        viewMatches.add(snapshot.views[node]);
+      }
+
+      if (nodeTester.matches(snapshot, node)) {
+        nodeMatches.add(snapshot.views[node]);
+      }
+    }
+
+    assertEquals(xpath, Arrays.asList(expected), viewMatches);
+    assertEquals(xpath, Arrays.asList(expected), nodeMatches);
+  }
+
+  private static void assertInvalid(String xpath) {
+    try {
+      FasTest.XPath.parse(xpath);
+      fail("parsed " + xpath);
+    } catch (RuntimeException error) {
+      assertEquals("invalid or unsupported xpath " + xpath, error.getMessage());
+    }
+  }
+
+  private static TextView text(String text) {
+    final TextView view = new TextView(app());
+    view.setText(text);
+    return view;
+  }
+
+  private static Application app() {
+    return RuntimeEnvironment.application;
+  }
+}